@@ -1,5 +1,9 @@
 package bigdatacourse.hw2;
 
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+
 public interface HW2API {
 
 	// connects to AstraDB
@@ -8,24 +12,68 @@ public interface HW2API {
 	// close the connection to AstraDB
 	public void close();
 	
+	// prints the query stats - the item cache, and the coalescing of identical concurrent queries (per key)
+	public void stats();
+	
 	// create database tables;
 	public void createTables();
 	
 	// initialize the prepared statements 
 	public void initialize();
 	
-	// loads the items in the file into the db
+	// loads the items in the file into the db (a folder or a glob loads all the items files that match, as one job)
 	public void loadItems(String pathItemsFile) throws Exception;
 	
-	// loads the reviews into the db
+	// loads the items, resume - continue from the checkpoint of an interrupted load
+	public void loadItems(String pathItemsFile, boolean resume) throws Exception;
+	
+	// loads the reviews into the db (a folder or a glob loads all the reviews files that match, as one job)
 	public void loadReviews(String pathReviewsFile) throws Exception;
 	
+	// loads the reviews, resume - continue from the checkpoint of an interrupted load
+	public void loadReviews(String pathReviewsFile, boolean resume) throws Exception;
+	
+	// converts the items files (a file, a folder or a glob) into staging files, sorted by partition key, for loadStaged
+	public void prepareItems(String pathItemsFile) throws Exception;
+	
+	// converts the reviews files into staging files, one per review table
+	public void prepareReviews(String pathReviewsFile) throws Exception;
+	
+	// loads prepared staging files (a file, a folder or a glob) - no parsing, the rows are bound as they were serialized
+	public void loadStaged(String pathStageFiles) throws Exception;
+	
+	// re-loads only the rows saved in a failed rows (dead-letter) file by a previous load
+	public void replay(String pathFailedRowsFile) throws Exception;
+	
 	// prints the item's details  
 	public void item(String asin);
 
+	// the details of the items, in the order of asins (null - the item does not exist), looked up in parallel
+	public List<Item> items(Collection<String> asins);
+	
 	// prints the user's reviews in a descending order (latest review is printed first)
 	public void userReviews(String reviewerID);
 	
+	// prints only the latest limit reviews of the user (limit <= 0 - all of them), in a single round trip
+	public void userReviews(String reviewerID, int limit);
+	
+	// prints the user's reviews with from <= time < to (null - open ended), latest first, at most limit (<= 0 - all).
+	// e.g. the reviews since T - (id, T, null, 0)
+	public void userReviews(String reviewerID, Instant from, Instant to, int limit);
+	
+	// prints a page of the user's reviews, pagingState - where the previous page ended (null - the first page).
+	// returns the paging state of the next page, null after the last page
+	public String userReviewsPage(String reviewerID, int pageSize, String pagingState);
+	
 	// prints the items's reviews in a descending order (latest review is printed first)
 	public void itemReviews(String asin);
+	
+	// prints only the latest limit reviews of the item (limit <= 0 - all of them), in a single round trip
+	public void itemReviews(String asin, int limit);
+	
+	// prints the item's reviews with from <= time < to (null - open ended), latest first, at most limit (<= 0 - all)
+	public void itemReviews(String asin, Instant from, Instant to, int limit);
+	
+	// prints a page of the item's reviews, returns the paging state of the next page (null after the last page)
+	public String itemReviewsPage(String asin, int pageSize, String pagingState);
 }
@@ -3,6 +3,11 @@ package bigdatacourse.hw2;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
 import bigdatacourse.hw2.studentcode.HW2StudentAnswer;
 
@@ -18,6 +23,8 @@ public class HW2CLI {
 	private static final String				FILE_DATASET_ITEMS		=	"meta_Office_Products.json";
 	private static final String				FILE_DATASET_REVIEWS	=	"reviews_Office_Products.json";
 
+	private static final String				FILE_COMPRESSED_SUFFIX	=	".gz";		// the dataset files may also be gzip compressed
+
 	private static final String				FILE_SEPARATOR			=	System.getProperty("file.separator");
 	
 	
@@ -31,7 +38,8 @@ public class HW2CLI {
 	
 	
 	private String 		pathAstraDBFolder;		// with the "Secure Connect Bundle" and GeneratedToken.csv
-	private String 		pathDatasetFolder;		// the dataset folder
+	private String 		pathItemsFile;			// the items file of the dataset folder (or the folder itself)
+	private String 		pathReviewsFile;		// the reviews file of the dataset folder (or the folder itself)
 	private HW2API		hw2API;					// will contain student answers
 	
 	
@@ -66,12 +74,30 @@ public class HW2CLI {
 												
 					case "createTables":		hw2API.createTables();			break;
 					case "initialize":			hw2API.initialize();			break;
-					case "loadItems":			hw2API.loadItems(pathDatasetFolder + FILE_DATASET_ITEMS);		break;
-					case "loadReviews":			hw2API.loadReviews(pathDatasetFolder + FILE_DATASET_REVIEWS);	break;
+					case "loadItems":			hw2API.loadItems(getSource(tokens, pathItemsFile), isResume(tokens));		break;
+					case "loadReviews":			hw2API.loadReviews(getSource(tokens, pathReviewsFile), isResume(tokens));	break;
+					case "prepareItems":		hw2API.prepareItems(getSource(tokens, pathItemsFile));			break;
+					case "prepareReviews":		hw2API.prepareReviews(getSource(tokens, pathReviewsFile));		break;
+					case "loadStaged":			hw2API.loadStaged(tokens[1]);									break;
+					case "replay":				hw2API.replay(tokens[1]);										break;
 					case "item":				hw2API.item(tokens[1]);											break;
-					case "userReviews":			hw2API.userReviews(tokens[1]);	break;
-					case "itemReviews":			hw2API.itemReviews(tokens[1]);	break;
+					case "items":				printItems(Arrays.asList(tokens).subList(1, tokens.length));	break;
+					case "userReviews":			if (isPage(tokens))
+													hw2API.userReviewsPage(tokens[1], Integer.parseInt(tokens[3]), getPagingState(tokens));
+												else if (isRange(tokens))
+													hw2API.userReviews(tokens[1], getFrom(tokens), getTo(tokens), getRangeLimit(tokens));
+												else
+													hw2API.userReviews(tokens[1], getLimit(tokens));
+												break;
+					case "itemReviews":			if (isPage(tokens))
+													hw2API.itemReviewsPage(tokens[1], Integer.parseInt(tokens[3]), getPagingState(tokens));
+												else if (isRange(tokens))
+													hw2API.itemReviews(tokens[1], getFrom(tokens), getTo(tokens), getRangeLimit(tokens));
+												else
+													hw2API.itemReviews(tokens[1], getLimit(tokens));
+												break;
 
+					case "stats":				hw2API.stats();					break;
 					case "help":				printHelp();					break;
 					case "exit":				isRunning = false;
 												hw2API.close();
@@ -95,16 +121,39 @@ public class HW2CLI {
 		
 		
 	
+	private void printItems(List<String> asins) {
+		long startNanos = System.nanoTime();
+		List<Item> items = hw2API.items(asins);
+		long millis = (System.nanoTime() - startNanos) / 1000000;
+		
+		for (int i = 0; i < items.size(); i++) {
+			Item item = items.get(i);
+			System.out.println(asins.get(i) + ": " + (item == null ? "not exists" : item.title));
+		}
+		System.out.println("items: " + items.size() + " in " + millis + " ms");
+	}
+	
+	
 	private void printHelp() {
 		System.out.println("-------------------- HW2 options ----------------------------");
 		System.out.println("connect \t\t connect to the DB");
 		System.out.println("createTables\t\t creates the tables");
 		System.out.println("initialize\t\t initialize the logic (prepared statements)");
-		System.out.println("loadItems\t\t prase and lode the items");
-		System.out.println("loadReviews\t\t prase and lode the reviews");
+		System.out.println("loadItems [*] [resume]\t prase and lode the items (resume - continue an interrupted load)");
+		System.out.println("loadReviews [*] [resume]\t prase and lode the reviews (resume - continue an interrupted load)");
+		System.out.println("\t\t\t * - a file, a folder or a glob (e.g. data/reviews_*.json), the dataset folder by default");
+		System.out.println("prepareItems [*]\t convert the items into staging files (sorted, serialized rows)");
+		System.out.println("prepareReviews [*]\t convert the reviews into staging files, one per review table");
+		System.out.println("loadStaged *\t\t load the staging files * (a file, a folder or a glob of .stage files)");
+		System.out.println("replay *\t\t re-load the failed rows saved in file *");
 		System.out.println("item * \t\t \t print the info for item *");
-		System.out.println("userReviews *\t\t print the reviews for user *");
-		System.out.println("itemsReviews *\t\t print the reviews for item *");
+		System.out.println("items * * ...\t\t print the titles of items *, looked up in parallel");
+		System.out.println("userReviews * [N]\t print the reviews for user * (N - only the latest N)");
+		System.out.println("itemsReviews * [N]\t print the reviews for item * (N - only the latest N)");
+		System.out.println("\t\t\t * page N [state] - a page of N reviews, state - the next page printed by the previous one");
+		System.out.println("\t\t\t * since T [N] / * between T1 T2 [N] - the reviews from T (to T2, excluded), at most N");
+		System.out.println("\t\t\t   T - 2014-01-31, 2014-01-31T12:00:00Z or epoch seconds");
+		System.out.println("stats   \t\t print the query stats (item cache, coalesced queries)");
 		System.out.println("help    \t\t print available commands");
 		System.out.println("exit    \t\t exit the CLI");
 		System.out.println("-------------------------------------------------------------");
@@ -125,15 +174,74 @@ public class HW2CLI {
 		validateFileExists(pathAstraDBFolder, FILE_ASTRA_DB);
 		validateFileExists(pathAstraDBFolder, FILE_GENERATED_TOKEN);
 		
-		// validating files for dataset
-		validateFileExists(pathDatasetFolder, FILE_DATASET_ITEMS);
-		validateFileExists(pathDatasetFolder, FILE_DATASET_REVIEWS);
+		// the files for dataset (plain or compressed, or all the files of the folder)
+		String pathItemsFile		=	findDatasetFile(pathDatasetFolder, FILE_DATASET_ITEMS);
+		String pathReviewsFile		=	findDatasetFile(pathDatasetFolder, FILE_DATASET_REVIEWS);
 		
 		// saving
 		this.pathAstraDBFolder	=	pathAstraDBFolder;
-		this.pathDatasetFolder	=	pathDatasetFolder;
+		this.pathItemsFile		=	pathItemsFile;
+		this.pathReviewsFile	=	pathReviewsFile;
+	}
+	
+	
+	// the plain file if it exists, otherwise its compressed version, otherwise the folder (all its files of the kind are loaded)
+	private static String findDatasetFile(String path, String filename) {
+		if (new File(path + filename).exists())
+			return path + filename;
+		if (new File(path + filename + FILE_COMPRESSED_SUFFIX).exists())
+			return path + filename + FILE_COMPRESSED_SUFFIX;
+		return path;
+	}
+	
+	// the file / folder / glob passed to a load command, the default one when none was passed
+	private static String getSource(String[] tokens, String defaultSource) {
+		return tokens.length > 1 && !tokens[1].equals("resume") ? tokens[1] : defaultSource;
+	}
+	
+	private static boolean isResume(String[] tokens) {
+		return tokens[tokens.length - 1].equals("resume");
 	}
 	
+	// userReviews / itemReviews <id> [N] - the latest N reviews (0 - all), <id> page N [state] - a page of N reviews
+	private static int getLimit(String[] tokens) {
+		return tokens.length > 2 ? Integer.parseInt(tokens[2]) : 0;
+	}
+	
+	private static boolean isPage(String[] tokens) {
+		return tokens.length > 3 && tokens[2].equals("page");
+	}
+	
+	private static String getPagingState(String[] tokens) {
+		return tokens.length > 4 ? tokens[4] : null;
+	}
+	
+	// <id> since T [N], <id> between T1 T2 [N]
+	private static boolean isRange(String[] tokens) {
+		return tokens.length > 3 && (tokens[2].equals("since") || (tokens[2].equals("between") && tokens.length > 4));
+	}
+	
+	private static Instant getFrom(String[] tokens) {
+		return parseTime(tokens[3]);
+	}
+	
+	private static Instant getTo(String[] tokens) {
+		return tokens[2].equals("between") ? parseTime(tokens[4]) : null;
+	}
+	
+	private static int getRangeLimit(String[] tokens) {
+		int limitIndex = tokens[2].equals("between") ? 5 : 4;
+		return tokens.length > limitIndex ? Integer.parseInt(tokens[limitIndex]) : 0;
+	}
+	
+	// a date (UTC midnight), an ISO instant or epoch seconds (as unixReviewTime)
+	private static Instant parseTime(String token) {
+		if (token.matches("-?\\d+"))
+			return Instant.ofEpochSecond(Long.parseLong(token));
+		if (token.length() == 10)
+			return LocalDate.parse(token).atStartOfDay(ZoneOffset.UTC).toInstant();
+		return Instant.parse(token);
+	}
 	
 	private static void validateFileExists(String path, String filename) throws Exception {
 		if (new File(path + filename).exists() == false)
@@ -0,0 +1,24 @@
+package bigdatacourse.hw2;
+
+import java.util.Set;
+
+
+/*
+ * The details of an item, as returned by HW2API.items - immutable, so it can be cached and shared between threads
+ * (a driver Row keeps its whole result page alive).
+ */
+public class Item {
+	public final String			asin;
+	public final String			title;
+	public final String			image;
+	public final Set<String>	categories;
+	public final String			description;
+
+	public Item(String asin, String title, String image, Set<String> categories, String description) {
+		this.asin			=	asin;
+		this.title			=	title;
+		this.image			=	image;
+		this.categories		=	categories;
+		this.description	=	description;
+	}
+}
@@ -0,0 +1,107 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.util.concurrent.TimeUnit;
+
+
+/*
+ * AIMD limit on the number of in-flight writes.
+ * Additive increase - while latencies stay under the target, the limit grows by ~1 every full window.
+ * Multiplicative decrease - on overload (OverloadedException, timeouts, rate limiting) the limit is cut,
+ * at most once per cooldown so a burst of errors from the same window only counts once.
+ */
+public class AdaptiveLimiter {
+
+	private static final double		BACKOFF_RATIO		=	0.5;
+
+	private final int				minLimit;
+	private final int				maxLimit;
+	private final long				targetLatencyNanos;
+	private final long				cooldownNanos;
+
+	private double					limit;
+	private int						inFlight;
+	private long					lastDecreaseNanos;
+	private long					decreases;
+	private long					blockedNanos;		// time the senders spent waiting for a slot
+
+
+	public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, long targetLatencyMillis) {
+		this.minLimit			=	minLimit;
+		this.maxLimit			=	maxLimit;
+		this.limit				=	Math.max(minLimit, Math.min(maxLimit, initialLimit));
+		this.targetLatencyNanos	=	TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+		this.cooldownNanos		=	targetLatencyNanos;
+		this.lastDecreaseNanos	=	System.nanoTime() - cooldownNanos;
+	}
+
+
+	// blocks while the current limit of writes is in flight
+	public synchronized void acquire() throws InterruptedException {
+		if (inFlight >= (int) limit) {
+			long startNanos = System.nanoTime();
+			while (inFlight >= (int) limit)
+				wait();
+			blockedNanos += System.nanoTime() - startNanos;
+		}
+		inFlight++;
+	}
+
+
+	public synchronized void release() {
+		inFlight--;
+		notifyAll();
+	}
+
+
+	// a write was acknowledged
+	public synchronized void onSuccess(long latencyNanos) {
+		if (latencyNanos > targetLatencyNanos || limit >= maxLimit)
+			return;
+
+		// only grow when the limit is actually used, otherwise a slow reader inflates it for nothing
+		if (inFlight * 2 < limit)
+			return;
+
+		int before = (int) limit;
+		limit = Math.min(maxLimit, limit + 1.0 / limit);
+		if ((int) limit > before)
+			notifyAll();
+	}
+
+
+	// the cluster pushed back
+	public synchronized void onOverload(Throwable error) {
+		long now = System.nanoTime();
+		if (now - lastDecreaseNanos < cooldownNanos)
+			return;
+
+		lastDecreaseNanos = now;
+		decreases++;
+		limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+		System.out.println("throttling - in-flight limit lowered to " + (int) limit + " (" + WriteErrors.unwrap(error).getClass().getSimpleName() + ")");
+	}
+
+
+	// waits until no write is in flight
+	public synchronized void awaitIdle() throws InterruptedException {
+		while (inFlight > 0)
+			wait();
+	}
+
+
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	public synchronized long getDecreases() {
+		return decreases;
+	}
+
+	public synchronized long getBlockedNanos() {
+		return blockedNanos;
+	}
+}
@@ -0,0 +1,210 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.ExecutionInfo;
+import com.datastax.oss.driver.api.core.cql.Statement;
+import com.datastax.oss.driver.api.core.metadata.token.Token;
+
+
+/*
+ * Write engine for the loaders, built on executeAsync - or on a blocking execute per statement on an executor
+ * (a platform thread pool or a virtual thread per write, see WriteMode).
+ * The number of statements sent at once is capped by an AdaptiveLimiter - write() blocks the reader
+ * until there is room, so the reader can never run ahead of the cluster and fill the heap with queued statements.
+ * Every attempt reports its latency / overload to the limiter, which adapts the cap to what the cluster accepts.
+ * Failed attempts are retried according to the RetryPolicy, after a backoff delay on a timer thread.
+ * When a TokenRouter is given, the coordinator of every acknowledged write is recorded by it.
+ * NOTE - callbacks run on the driver's I/O threads (or the executor's), they must be short and must not call write()
+ */
+public class AsyncWriter implements AutoCloseable {
+
+	// called once per statement, after it was acknowledged (error == null) or gave up
+	public interface Callback {
+		void onComplete(Throwable error);
+	}
+
+
+	private final CqlSession		session;
+	private final AdaptiveLimiter	limiter;
+	private final RetryPolicy		retryPolicy;
+	private final TokenRouter		router;			// null - no routing measurements
+	private final ExecutorService	executor;		// null - executeAsync
+
+	// lock-free metrics, read by the progress reporter
+	private final LongAdder			succeeded	=	new LongAdder();
+	private final LongAdder			failed		=	new LongAdder();
+	private final LongAdder			retried		=	new LongAdder();
+	private final LatencyHistogram	latencies	=	new LatencyHistogram();
+
+	// delays the retries, so a backoff never blocks the driver's I/O threads
+	private final ScheduledExecutorService	retryTimer	=	Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "async-writer-retry");
+		t.setDaemon(true);
+		return t;
+	});
+
+
+	public AsyncWriter(CqlSession session, AdaptiveLimiter limiter, RetryPolicy retryPolicy) {
+		this(session, limiter, retryPolicy, null);
+	}
+
+	public AsyncWriter(CqlSession session, AdaptiveLimiter limiter, RetryPolicy retryPolicy, TokenRouter router) {
+		this(session, limiter, retryPolicy, router, null);
+	}
+
+	// executor - every statement is sent with a blocking execute on it (the writer shuts it down on close)
+	public AsyncWriter(CqlSession session, AdaptiveLimiter limiter, RetryPolicy retryPolicy, TokenRouter router, ExecutorService executor) {
+		this.session		=	session;
+		this.limiter		=	limiter;
+		this.retryPolicy	=	retryPolicy;
+		this.router			=	router;
+		this.executor		=	executor;
+	}
+
+
+	// sends the statement, blocking while the limiter's cap of statements is already pending
+	public void write(Statement<?> statement, Callback callback) throws InterruptedException {
+		limiter.acquire();
+		send(statement, callback, 1);
+	}
+
+
+	private void send(Statement<?> statement, Callback callback, int attempt) {
+		if (executor != null) {
+			sendBlocking(statement, callback, attempt);
+			return;
+		}
+
+		CompletionStage<AsyncResultSet> future;
+		long startNanos = System.nanoTime();
+		try {
+			future = session.executeAsync(statement);
+		}
+		catch (RuntimeException e) {
+			complete(callback, e);
+			return;
+		}
+
+		future.whenComplete((rs, error) -> onResult(statement, callback, attempt, startNanos, rs == null ? null : rs.getExecutionInfo(), error));
+	}
+
+
+	// the latency includes the time the write waited for a thread, so a saturated executor slows the limiter down
+	private void sendBlocking(Statement<?> statement, Callback callback, int attempt) {
+		long startNanos = System.nanoTime();
+		try {
+			executor.execute(() -> {
+				ExecutionInfo info = null;
+				Throwable error = null;
+				try {
+					info = session.execute(statement).getExecutionInfo();
+				}
+				catch (RuntimeException e) {
+					error = e;
+				}
+				onResult(statement, callback, attempt, startNanos, info, error);
+			});
+		}
+		catch (RuntimeException e) {
+			complete(callback, e);
+		}
+	}
+
+
+	// an attempt completed (in any mode) - feeds the limiter, then retries or completes the statement
+	private void onResult(Statement<?> statement, Callback callback, int attempt, long startNanos, ExecutionInfo info, Throwable error) {
+		if (error == null) {
+			long latency = System.nanoTime() - startNanos;
+			latencies.record(latency);
+			limiter.onSuccess(latency);
+		}
+		else if (WriteErrors.isOverload(error))
+			limiter.onOverload(error);
+
+		if (error != null && retryPolicy.shouldRetry(error, Boolean.TRUE.equals(statement.isIdempotent()), attempt)) {
+			// the statement keeps its place in the limiter while it is retried
+			retried.increment();
+			retryTimer.schedule(() -> send(statement, callback, attempt + 1), retryPolicy.delayMillis(attempt), TimeUnit.MILLISECONDS);
+			return;
+		}
+		if (error == null && router != null)
+			recordRouting(statement, info);
+		complete(callback, error);
+	}
+
+
+	private void recordRouting(Statement<?> statement, ExecutionInfo info) {
+		Token token = statement.getRoutingToken();
+		if (token == null)
+			token = router.tokenOf(statement.getRoutingKey());
+		router.recordCoordinator(token, info.getCoordinator());
+	}
+
+
+	private void complete(Callback callback, Throwable error) {
+		if (error == null)
+			succeeded.increment();
+		else
+			failed.increment();
+
+		// released last, so flush() only returns once the callbacks ran as well -
+		// and in a finally, so a throwing callback never loses the slot
+		try {
+			if (callback != null)
+				callback.onComplete(error);
+		}
+		finally {
+			limiter.release();
+		}
+	}
+
+
+	// waits until every statement written so far was completed
+	public void flush() throws InterruptedException {
+		limiter.awaitIdle();
+	}
+
+
+	// an interrupt stops the wait for the writes in flight, the interrupt flag is kept for the caller
+	@Override
+	public void close() {
+		try {
+			flush();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		retryTimer.shutdown();
+		if (executor != null)
+			executor.shutdown();
+	}
+
+
+	public int getInFlight() {
+		return limiter.getInFlight();
+	}
+
+	public long getSucceeded() {
+		return succeeded.sum();
+	}
+
+	public long getFailed() {
+		return failed.sum();
+	}
+
+	public long getRetried() {
+		return retried.sum();
+	}
+
+	public LatencyHistogram getLatencies() {
+		return latencies;
+	}
+}
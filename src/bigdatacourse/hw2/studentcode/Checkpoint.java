@@ -0,0 +1,198 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+
+/*
+ * Durable progress of a load - for every byte range of the file, the offset up to which every write was acknowledged.
+ * Rows are registered (in file order, per range) when they are read, with a hold for their processing by the later
+ * stages, then their writes are added before they are sent and acknowledged by the write callbacks - so rows may be
+ * parsed and written in any order. The safe point of a range is the start of its oldest row that is not done yet.
+ * Rows that ended in the dead-letter file count as done, so that file is flushed before every save.
+ * The checkpoint is saved periodically (write to a temp file, fsync, atomic rename) and once more on close.
+ */
+public class Checkpoint implements AutoCloseable {
+
+	private static final String		SUFFIX			=	".checkpoint";
+	private static final String		FIELD_RANGES	=	"ranges";
+	private static final String		FIELD_START		=	"start";
+	private static final String		FIELD_END		=	"end";
+	private static final String		FIELD_OFFSET	=	"offset";
+
+
+	// a byte range of the file, read by a single parser in file order
+	public static class Range {
+		private final long						start;
+		private final long						end;
+
+		private final TreeMap<Long, Integer>	pending		=	new TreeMap<>();	// row offset -> holds / writes not acknowledged yet
+		private long							readOffset;							// end of the last registered row
+
+		public Range(long start, long end, long offset) {
+			this.start		=	start;
+			this.end		=	end;
+			this.readOffset	=	offset;
+		}
+
+		// must be called in file order. a row without writes (or holds) is done right away
+		public synchronized void register(long rowOffset, long rowEndOffset, int writes) {
+			if (writes > 0)
+				pending.put(rowOffset, writes);
+			readOffset = rowEndOffset;
+		}
+
+		// more writes of a registered row, must be called while the row still holds (before its hold is acknowledged)
+		public synchronized void expect(long rowOffset, int writes) {
+			pending.merge(rowOffset, writes, Integer::sum);
+		}
+
+		// one write (or hold) of the row completed (acknowledged or saved as dead letter)
+		public synchronized void ack(long rowOffset) {
+			Integer writes = pending.get(rowOffset);
+			if (writes == null)
+				return;
+			if (writes == 1)
+				pending.remove(rowOffset);
+			else
+				pending.put(rowOffset, writes - 1);
+		}
+
+		// everything in [start, safeOffset) is safely written
+		public synchronized long safeOffset() {
+			return pending.isEmpty() ? readOffset : pending.firstKey();
+		}
+
+		public long getStart() {
+			return start;
+		}
+
+		public long getEnd() {
+			return end;
+		}
+	}
+
+
+	private final Path							path;
+	private final List<Range>					ranges;
+	private final Flushable						durableBefore;
+	private String								saved;
+
+	private final ScheduledExecutorService		saveTimer;
+
+
+	public Checkpoint(String path, List<Range> ranges, Flushable durableBefore, long saveIntervalSeconds) {
+		this.path			=	Paths.get(path);
+		this.ranges			=	ranges;
+		this.durableBefore	=	durableBefore;
+
+		this.saveTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "checkpoint-save");
+			t.setDaemon(true);
+			return t;
+		});
+		saveTimer.scheduleWithFixedDelay(this::saveQuietly, saveIntervalSeconds, saveIntervalSeconds, TimeUnit.SECONDS);
+	}
+
+
+	// the checkpoint file of a dataset file
+	public static String pathFor(String pathSourceFile) {
+		return pathSourceFile + SUFFIX;
+	}
+
+
+	// the ranges of the saved checkpoint, each starting at its safe offset. null when there is none
+	public static List<Range> load(String path) throws IOException {
+		Path file = Paths.get(path);
+		if (!Files.exists(file))
+			return null;
+
+		JSONObject json = new JSONObject(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+		JSONArray array = json.getJSONArray(FIELD_RANGES);
+		List<Range> ranges = new ArrayList<>(array.length());
+		for (int i = 0; i < array.length(); i++) {
+			JSONObject range = array.getJSONObject(i);
+			ranges.add(new Range(range.getLong(FIELD_START), range.getLong(FIELD_END), range.getLong(FIELD_OFFSET)));
+		}
+		return ranges;
+	}
+
+
+	public void save() throws IOException {
+		JSONArray array = new JSONArray();
+		for (Range range : ranges) {
+			JSONObject json = new JSONObject();
+			json.put(FIELD_START, range.start);
+			json.put(FIELD_END, range.end);
+			json.put(FIELD_OFFSET, range.safeOffset());
+			array.put(json);
+		}
+		String content = new JSONObject().put(FIELD_RANGES, array).toString();
+		if (content.equals(saved))
+			return;
+
+		// the dead letters that were counted as done must be on disk before the checkpoint passes them
+		if (durableBefore != null)
+			durableBefore.flush();
+
+		Path temp = Paths.get(path.toString() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			channel.write(ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8)));
+			channel.force(true);
+		}
+		Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		saved = content;
+	}
+
+
+	private void saveQuietly() {
+		try {
+			save();
+		}
+		catch (IOException e) {
+			System.out.println("ERROR - can not save checkpoint " + path + ": " + e.getMessage());
+		}
+	}
+
+
+	// waits for a save in progress even when interrupted - the final save must not overlap it, and must not run
+	// with the interrupt flag set (it would close the file channel). the flag is restored for the caller afterwards
+	@Override
+	public void close() throws IOException {
+		saveTimer.shutdown();
+		boolean interrupted = false;
+		while (true) {
+			try {
+				saveTimer.awaitTermination(1, TimeUnit.MINUTES);
+				break;
+			}
+			catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		try {
+			save();
+		}
+		finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+}
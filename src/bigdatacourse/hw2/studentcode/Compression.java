@@ -0,0 +1,49 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+
+/*
+ * Compression of a dataset file, detected from its magic bytes (not its name).
+ * Compressed files are decompressed by a DecompressionStage, on its own thread.
+ */
+public enum Compression {
+	NONE,
+	GZIP,
+	ZSTD;
+
+
+	private static final int		GZIP_BUFFER_SIZE	=	1 << 16;
+
+
+	public static Compression detect(String path) throws IOException {
+		byte[] magic = new byte[4];
+		int read;
+		try (InputStream in = new FileInputStream(path)) {
+			read = in.readNBytes(magic, 0, magic.length);
+		}
+
+		if (read >= 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b)
+			return GZIP;
+		if (read >= 4 && (magic[0] & 0xff) == 0x28 && (magic[1] & 0xff) == 0xb5 && (magic[2] & 0xff) == 0x2f && (magic[3] & 0xff) == 0xfd)
+			return ZSTD;
+		return NONE;
+	}
+
+
+	// the decompressed content of the file
+	public InputStream open(String path) throws IOException {
+		switch (this) {
+			case GZIP:		// GZIPInputStream also reads multi-member files (pigz / bgzip output)
+							return new DecompressionStage(new GZIPInputStream(new FileInputStream(path), GZIP_BUFFER_SIZE));
+
+			case ZSTD:		throw new IOException("zstd compressed input is not supported (no zstd codec available), " +
+													"recompress " + path + " with gzip or decompress it first");
+
+			default:		return new FileInputStream(path);
+		}
+	}
+}
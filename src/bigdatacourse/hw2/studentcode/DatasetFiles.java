@@ -0,0 +1,57 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/*
+ * Resolves what a load was given into the dataset files to load - a single file, a folder (every file of
+ * the kind in it, e.g. all the reviews_*.json of the categories) or a glob on the file names (e.g. data/meta_B*.json).
+ * The files of the load (.checkpoint, .failed, .delta...) never match the patterns of a folder.
+ */
+public class DatasetFiles {
+
+	// the dataset files of a folder, plain or compressed
+	public static final String		ITEMS_PATTERN		=	"meta_*.{json,json.gz}";
+	public static final String		REVIEWS_PATTERN		=	"reviews_*.{json,json.gz}";
+
+
+	// the files, sorted by name. folderPattern - the files taken from a folder
+	public static List<String> resolve(String source, String folderPattern) throws IOException {
+		Path path = Paths.get(source);
+		if (Files.isRegularFile(path))
+			return List.of(source);
+
+		Path folder;
+		String pattern;
+		if (Files.isDirectory(path)) {
+			folder	=	path;
+			pattern	=	folderPattern;
+		}
+		else {
+			// only the file name may be a glob
+			folder	=	path.getParent() != null ? path.getParent() : Paths.get(".");
+			pattern	=	path.getFileName().toString();
+		}
+		if (!Files.isDirectory(folder))
+			throw new IOException("can not find " + source);
+
+		List<String> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder, pattern)) {
+			for (Path file : stream)
+				if (Files.isRegularFile(file))
+					files.add(file.toString());
+		}
+		if (files.isEmpty())
+			throw new IOException("no dataset files match " + source + (Files.isDirectory(path) ? "/" + folderPattern : ""));
+
+		Collections.sort(files);
+		return files;
+	}
+}
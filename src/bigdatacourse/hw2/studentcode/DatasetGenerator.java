@@ -0,0 +1,394 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+
+/*
+ * Writes a synthetic dataset in the shape of the Amazon dumps - meta_<category>.json and reviews_<category>.json,
+ * a json object per line with the fields the loaders read (asin, title, imUrl, nested categories, description...
+ * reviewerID, asin, reviewerName, overall, summary, reviewText, unixReviewTime...), for load and query benchmarks.
+ * Every category file has its own items, the users are shared. The popularity of the items (reviews per item) and of
+ * the users (reviews per user) is Zipfian, so some partitions are hot, as in the real dumps; the words of the texts
+ * are Zipfian too, and the text lengths log-normal. Some optional fields are left out, as in the real dumps.
+ * The output is deterministic for a given seed and scale, so runs can be compared.
+ * usage: DatasetGenerator <output folder> [items] [reviews] [files]
+ *   -Dhw2.genUsers=N (reviews / 10)  -Dhw2.genItemSkew=S (1.1)  -Dhw2.genUserSkew=S (0.9)  -Dhw2.genTextScale=X (1.0)
+ *   -Dhw2.genSeed=N (42)  -Dhw2.genGzip=true (writes .json.gz)
+ */
+public class DatasetGenerator {
+
+	private static final String[]	CATEGORIES		=	{ "Office_Products", "Books", "Electronics", "Home_and_Kitchen", "Toys_and_Games",
+														  "Sports_and_Outdoors", "Clothing_Shoes_and_Jewelry", "Health_and_Personal_Care",
+														  "Tools_and_Home_Improvement", "Musical_Instruments", "Grocery_and_Gourmet_Food", "Beauty" };
+	private static final String[]	SYLLABLES		=	{ "ka", "lo", "mi", "ne", "ra", "to", "su", "pe", "di", "an", "or", "el", "st", "ur",
+														  "ix", "co", "ba", "ve", "gu", "th", "in", "qu", "ay", "sh", "ol", "en", "pr", "fa" };
+	private static final int		VOCABULARY		=	20000;
+	private static final int		WORD_TABLE		=	1 << 20;	// slots of the word frequency table
+	private static final int		SUBCATEGORIES	=	40;
+	private static final int		HOT_RANKS		=	10;		// the most popular items / users, counted for the summary
+
+	private static final long		FIRST_REVIEW	=	LocalDate.of(2000, 1, 1).toEpochDay() * 86400;
+	private static final long		LAST_REVIEW		=	LocalDate.of(2014, 7, 23).toEpochDay() * 86400;
+
+	private static final int		USERS			=	Integer.getInteger("hw2.genUsers", 0);
+	private static final double		ITEM_SKEW		=	Double.parseDouble(System.getProperty("hw2.genItemSkew", "1.1"));
+	private static final double		USER_SKEW		=	Double.parseDouble(System.getProperty("hw2.genUserSkew", "0.9"));
+	private static final double		TEXT_SCALE		=	Double.parseDouble(System.getProperty("hw2.genTextScale", "1.0"));
+	private static final long		SEED			=	Long.getLong("hw2.genSeed", 42);
+	private static final boolean	GZIP			=	Boolean.getBoolean("hw2.genGzip");
+
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("usage: DatasetGenerator <output folder> [items] [reviews] [files]");
+			return;
+		}
+
+		String folder	=	args[0];
+		long items		=	args.length > 1 ? Long.parseLong(args[1]) : 100_000;
+		long reviews	=	args.length > 2 ? Long.parseLong(args[2]) : 1_000_000;
+		int files		=	args.length > 3 ? Integer.parseInt(args[3]) : 1;
+		long users		=	USERS > 0 ? USERS : Math.max(1, reviews / 10);
+		if (items > 999_999_999L || files < 1 || files > items)
+			throw new IllegalArgumentException("items must be 1..999999999 and files 1..items");
+
+		Files.createDirectories(Paths.get(folder));
+		String[] vocabulary = vocabulary();
+		int[] wordTable = wordTable(vocabulary.length, 1.07);
+		ZipfSampler userSampler = new ZipfSampler(users, USER_SKEW);
+		System.out.println(String.format("generating %d items, %d reviews, %d users in %d files (item skew %.2f, user skew %.2f)",
+											items, reviews, users, files, ITEM_SKEW, USER_SKEW));
+
+		long startNanos = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(files, Runtime.getRuntime().availableProcessors()));
+		List<Future<CategoryFile>> results = new ArrayList<>();
+		for (int f = 0; f < files; f++) {
+			// the items and the reviews are split between the files evenly
+			CategoryFile file = new CategoryFile(folder, categoryName(f), items * f / files, items * (f + 1) / files,
+												reviews * (f + 1) / files - reviews * f / files, vocabulary, wordTable, userSampler, SEED + 31 * f);
+			results.add(pool.submit(() -> file.write()));
+		}
+
+		long bytes = 0;
+		long[] hotUsers = new long[HOT_RANKS + 1];
+		for (Future<CategoryFile> result : results) {
+			CategoryFile file = result.get();
+			bytes += file.bytes;
+			for (int r = 1; r <= HOT_RANKS; r++)
+				hotUsers[r] += file.userRanks[r];
+			System.out.println("  " + file.category + " - items: " + (file.lastItem - file.firstItem) + ", reviews: " + file.reviews +
+								", hottest item: " + asin(file.itemAt(1)) + " (" + file.itemRanks[1] + " reviews)");
+		}
+		pool.shutdown();
+
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+		System.out.println("hottest users: " + reviewerId(1) + " (" + hotUsers[1] + " reviews), " + reviewerId(2) + " (" + hotUsers[2] + " reviews)");
+		System.out.println(String.format("done - %.0f MB in %.1f s (%.0f rows/s)", bytes / 1048576.0, seconds, (items + reviews) / seconds));
+	}
+
+
+	// the items and the reviews of one category
+	private static class CategoryFile {
+		final String			folder;
+		final String			category;
+		final long				firstItem;
+		final long				lastItem;
+		final long				reviews;
+		final String[]			vocabulary;
+		final int[]				wordTable;
+		final ZipfSampler		userSampler;
+		final ZipfSampler		itemSampler;
+		final SplittableRandom	random;
+		final String[]			subcategories	=	new String[SUBCATEGORIES];
+		final long				stride;			// scatter the popularity ranks over the items, so the hot items are not the first ones
+		final long				offset;
+		final long[]			itemRanks		=	new long[HOT_RANKS + 1];
+		final long[]			userRanks		=	new long[HOT_RANKS + 1];
+		long					bytes;
+
+		CategoryFile(String folder, String category, long firstItem, long lastItem, long reviews,
+						String[] vocabulary, int[] wordTable, ZipfSampler userSampler, long seed) {
+			this.folder			=	folder;
+			this.category		=	category;
+			this.firstItem		=	firstItem;
+			this.lastItem		=	lastItem;
+			this.reviews		=	reviews;
+			this.vocabulary		=	vocabulary;
+			this.wordTable		=	wordTable;
+			this.userSampler	=	userSampler;
+			this.itemSampler	=	new ZipfSampler(lastItem - firstItem, ITEM_SKEW);
+			this.random			=	new SplittableRandom(seed);
+			this.stride			=	coprimeStride(lastItem - firstItem);
+			this.offset			=	Math.floorMod(mix(seed), lastItem - firstItem);
+			for (int i = 0; i < SUBCATEGORIES; i++)
+				subcategories[i] = capitalize(words(2, new StringBuilder()).toString());
+		}
+
+		// the item of a popularity rank (1 - the most popular)
+		long itemAt(long rank) {
+			return firstItem + ((rank - 1) * stride + offset) % (lastItem - firstItem);
+		}
+
+		CategoryFile write() throws IOException {
+			StringBuilder line = new StringBuilder(4096);
+			try (Writer out = open("meta_" + category)) {
+				for (long item = firstItem; item < lastItem; item++) {
+					line.setLength(0);
+					itemLine(item, line);
+					out.write(line.append('\n').toString());
+					bytes += line.length();
+				}
+			}
+			try (Writer out = open("reviews_" + category)) {
+				for (long i = 0; i < reviews; i++) {
+					line.setLength(0);
+					reviewLine(line);
+					out.write(line.append('\n').toString());
+					bytes += line.length();
+				}
+			}
+			return this;
+		}
+
+		private Writer open(String name) throws IOException {
+			String path = Paths.get(folder, name + (GZIP ? ".json.gz" : ".json")).toString();
+			OutputStream out = new FileOutputStream(path);
+			if (GZIP)
+				out = new GZIPOutputStream(out, 1 << 16);
+			return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 20);
+		}
+
+		private void itemLine(long item, StringBuilder line) {
+			line.append("{\"asin\": \"").append(asin(item)).append('"');
+			if (random.nextInt(10) != 0)
+				words(lengthOf(8, 0.4, 30), line.append(", \"title\": \"")).append('"');
+			if (random.nextInt(5) != 0)
+				line.append(", \"price\": ").append(random.nextInt(1, 20000) / 100.0);
+			if (random.nextInt(10) != 0)
+				line.append(", \"imUrl\": \"http://ecx.images-amazon.com/images/I/").append(Long.toUnsignedString(mix(item), 36)).append("._SY300_.jpg\"");
+
+			// a few items also bought with it, mostly popular ones
+			int related = random.nextInt(6);
+			if (related > 0) {
+				line.append(", \"related\": {\"also_bought\": [");
+				for (int i = 0; i < related; i++)
+					line.append(i == 0 ? "\"" : ", \"").append(asin(itemAt(itemSampler.sample(random)))).append('"');
+				line.append("]}");
+			}
+			line.append(", \"salesRank\": {\"").append(category).append("\": ").append(random.nextInt(1, 2_000_000)).append('}');
+
+			// 1 to 3 paths in the category tree
+			line.append(", \"categories\": [");
+			int paths = 1 + (random.nextInt(4) == 0 ? random.nextInt(1, 3) : 0);
+			for (int p = 0; p < paths; p++) {
+				line.append(p == 0 ? "[\"" : ", [\"").append(category.replace('_', ' ')).append('"');
+				int depth = random.nextInt(0, 3);
+				for (int d = 0; d < depth; d++)
+					line.append(", \"").append(subcategories[random.nextInt(SUBCATEGORIES)]).append('"');
+				line.append(']');
+			}
+			line.append(']');
+
+			if (random.nextInt(4) != 0)
+				words(lengthOf(60, 0.8, 1000), line.append(", \"description\": \"")).append('"');
+			line.append('}');
+		}
+
+		private void reviewLine(StringBuilder line) {
+			long itemRank	=	itemSampler.sample(random);
+			long userRank	=	userSampler.sample(random);
+			if (itemRank <= HOT_RANKS)
+				itemRanks[(int) itemRank]++;
+			if (userRank <= HOT_RANKS)
+				userRanks[(int) userRank]++;
+			long time		=	random.nextLong(FIRST_REVIEW, LAST_REVIEW);
+			LocalDate date	=	LocalDate.ofEpochDay(time / 86400);
+			int votes		=	random.nextInt(4) == 0 ? random.nextInt(1, 30) : 0;
+
+			line.append("{\"reviewerID\": \"").append(reviewerId(userRank)).append('"');
+			line.append(", \"asin\": \"").append(asin(itemAt(itemRank))).append('"');
+			if (random.nextInt(20) != 0)
+				words(random.nextInt(1, 3), line.append(", \"reviewerName\": \"")).append('"');
+			line.append(", \"helpful\": [").append(votes == 0 ? 0 : random.nextInt(votes + 1)).append(", ").append(votes).append(']');
+			words(lengthOf(70, 0.9, 2000), line.append(", \"reviewText\": \"")).append('"');
+			line.append(", \"overall\": ").append(rating()).append(".0");
+			words(lengthOf(4, 0.5, 20), line.append(", \"summary\": \"")).append('"');
+			line.append(", \"unixReviewTime\": ").append(time);
+			line.append(", \"reviewTime\": \"").append(twoDigits(date.getMonthValue())).append(' ')
+				.append(twoDigits(date.getDayOfMonth())).append(", ").append(date.getYear()).append("\"}");
+		}
+
+		// skewed to the high ratings, as in the real reviews
+		private int rating() {
+			int r = random.nextInt(100);
+			return r < 55 ? 5 : r < 75 ? 4 : r < 85 ? 3 : r < 91 ? 2 : 1;
+		}
+
+		// log-normal, around the median
+		private int lengthOf(int median, double sigma, int max) {
+			double length = median * TEXT_SCALE * Math.exp(sigma * gaussian());
+			return (int) Math.max(1, Math.min(max, length));
+		}
+
+		private double gaussian() {
+			// Box-Muller (SplittableRandom has no nextGaussian on 17)
+			return Math.sqrt(-2 * Math.log(1 - random.nextDouble())) * Math.cos(2 * Math.PI * random.nextDouble());
+		}
+
+		private StringBuilder words(int count, StringBuilder line) {
+			for (int i = 0; i < count; i++) {
+				if (i > 0)
+					line.append(' ');
+				line.append(vocabulary[wordTable[random.nextInt(WORD_TABLE)]]);
+			}
+			return line;
+		}
+	}
+
+
+	/*
+	 * Zipf distributed ranks in 1..n, P(k) ~ 1 / k^skew, by rejection-inversion (W. Hormann, G. Derflinger) -
+	 * constant time and memory per sample whatever n is, so it scales to billions of ranks.
+	 * Immutable, the random source is the caller's.
+	 */
+	static class ZipfSampler {
+		private final long		n;
+		private final double	skew;
+		private final double	hIntegralX1;
+		private final double	hIntegralN;
+		private final double	s;
+
+		ZipfSampler(long n, double skew) {
+			this.n				=	n;
+			this.skew			=	skew;
+			this.hIntegralX1	=	hIntegral(1.5) - 1;
+			this.hIntegralN		=	hIntegral(n + 0.5);
+			this.s				=	2 - hIntegralInverse(hIntegral(2.5) - h(2));
+		}
+
+		long sample(SplittableRandom random) {
+			while (true) {
+				double u = hIntegralN + random.nextDouble() * (hIntegralX1 - hIntegralN);
+				double x = hIntegralInverse(u);
+				long k = Math.max(1, Math.min(n, (long) (x + 0.5)));
+				if (k - x <= s || u >= hIntegral(k + 0.5) - h(k))
+					return k;
+			}
+		}
+
+		private double h(double x) {
+			return Math.exp(-skew * Math.log(x));
+		}
+
+		private double hIntegral(double x) {
+			double logX = Math.log(x);
+			return expm1OverX((1 - skew) * logX) * logX;
+		}
+
+		private double hIntegralInverse(double x) {
+			double t = Math.max(-1, x * (1 - skew));
+			return Math.exp(log1pOverX(t) * x);
+		}
+
+		// the limits at 0 by their Taylor series, so skew = 1 works too
+		private static double log1pOverX(double x) {
+			return Math.abs(x) > 1e-8 ? Math.log1p(x) / x : 1 - x * (0.5 - x * (1 / 3.0 - 0.25 * x));
+		}
+
+		private static double expm1OverX(double x) {
+			return Math.abs(x) > 1e-8 ? Math.expm1(x) / x : 1 + x * 0.5 * (1 + x / 3 * (1 + 0.25 * x));
+		}
+	}
+
+
+	private static String categoryName(int file) {
+		return file < CATEGORIES.length ? CATEGORIES[file] : CATEGORIES[file % CATEGORIES.length] + "_" + (file / CATEGORIES.length + 1);
+	}
+
+	// 10 characters, as the real ones
+	private static String asin(long item) {
+		String digits = Long.toString(item);
+		return "B" + "000000000".substring(digits.length()) + digits;
+	}
+
+	// unique per user, and the hot users are not the first ones
+	private static String reviewerId(long user) {
+		String id = Long.toUnsignedString(mix(user), 36).toUpperCase();
+		return "A" + "0000000000000".substring(id.length()) + id;
+	}
+
+	private static String twoDigits(int value) {
+		return value < 10 ? "0" + value : Integer.toString(value);
+	}
+
+	private static String capitalize(String text) {
+		return Character.toUpperCase(text.charAt(0)) + text.substring(1);
+	}
+
+	// the words, by frequency rank - the rank in bijective base SYLLABLES, so the words are unique
+	// and the most frequent ones are the shortest
+	private static String[] vocabulary() {
+		String[] words = new String[VOCABULARY];
+		for (int i = 0; i < VOCABULARY; i++) {
+			StringBuilder word = new StringBuilder();
+			for (int rank = i; rank >= 0; rank = rank / SYLLABLES.length - 1)
+				word.append(SYLLABLES[rank % SYLLABLES.length]);
+			words[i] = word.toString();
+		}
+		return words;
+	}
+
+	// slots per word proportional to its Zipf frequency, so a word is sampled with a single random index
+	// (the sampler's exp / log per word was most of the generation time)
+	private static int[] wordTable(int words, double skew) {
+		double total = 0;
+		for (int k = 1; k <= words; k++)
+			total += Math.pow(k, -skew);
+
+		int[] table = new int[WORD_TABLE];
+		double cumulative = 0;
+		int slot = 0;
+		for (int k = 1; k <= words; k++) {
+			cumulative += Math.pow(k, -skew) / total;
+			int end = k == words ? WORD_TABLE : (int) Math.round(cumulative * WORD_TABLE);
+			while (slot < end)
+				table[slot++] = k - 1;
+		}
+		return table;
+	}
+
+	// a stride coprime to n, so rank -> item is a permutation
+	private static long coprimeStride(long n) {
+		long stride = 1_000_003;
+		while (gcd(stride % n, n) != 1)
+			stride += 2;
+		return stride % n == 0 ? 1 : stride % n;
+	}
+
+	private static long gcd(long a, long b) {
+		return b == 0 ? a : gcd(b, a % b);
+	}
+
+	// a bijection of the longs (the splitmix64 finalizer)
+	private static long mix(long x) {
+		x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+		x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+		return x ^ (x >>> 31);
+	}
+}
@@ -0,0 +1,171 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/*
+ * Streams a dataset file (one JSON record per line) with constant memory.
+ * Only a fixed read buffer and the current line are held - the file is never loaded as a whole.
+ * Lines are split on the raw bytes and decoded as UTF-8 one at a time, and the byte offset of
+ * every line is tracked.
+ * A reader can be limited to a byte range of the file (see split), so several parsers can share one file.
+ */
+public class DatasetReader implements LineReader {
+
+	private static final int		BUFFER_SIZE			=	1 << 16;
+	private static final int		INITIAL_LINE_SIZE	=	1 << 12;
+
+	private final InputStream		in;
+	private final byte[]			buffer				=	new byte[BUFFER_SIZE];
+	private int						position;
+	private int						limit;
+
+	private byte[]					line				=	new byte[INITIAL_LINE_SIZE];
+	private long					offset;				// byte offset of the next line
+	private long					lineOffset;			// byte offset of the last line returned
+	private long					end				=	Long.MAX_VALUE;	// no line starting at / after it is returned
+
+
+	public DatasetReader(String path) throws IOException {
+		this(new FileInputStream(path));
+	}
+
+	public DatasetReader(InputStream in) {
+		this.in = in;
+	}
+
+
+	@Override
+	public String readLine() throws IOException {
+		int length = 0;
+		boolean found = false;
+		lineOffset = offset;
+		if (offset >= end)
+			return null;
+
+		while (!found) {
+			if (position == limit) {
+				limit = in.read(buffer, 0, BUFFER_SIZE);
+				position = 0;
+				if (limit <= 0) {
+					limit = 0;
+					if (length == 0)
+						return null;
+					break;
+				}
+			}
+
+			// scanning the buffer for the end of the line
+			int start = position;
+			while (position < limit && buffer[position] != '\n')
+				position++;
+
+			int chunk = position - start;
+			if (length + chunk > line.length)
+				line = Arrays.copyOf(line, Math.max(line.length * 2, length + chunk));
+			System.arraycopy(buffer, start, line, length, chunk);
+			length += chunk;
+			offset += chunk;
+
+			if (position < limit) {
+				// skipping the '\n'
+				position++;
+				offset++;
+				found = true;
+			}
+		}
+
+		if (length > 0 && line[length - 1] == '\r')
+			length--;
+
+		return new String(line, 0, length, StandardCharsets.UTF_8);
+	}
+
+
+	@Override
+	public void seek(long target) throws IOException {
+		if (offset != 0 || limit != 0)
+			throw new IllegalStateException("seek is only supported before reading");
+
+		long remaining = target;
+		while (remaining > 0) {
+			long skipped = in.skip(remaining);
+			if (skipped <= 0) {
+				// some streams (e.g. decompressing) only skip by reading
+				if (in.read() < 0)
+					break;
+				skipped = 1;
+			}
+			remaining -= skipped;
+		}
+		offset		=	target - remaining;
+		lineOffset	=	offset;
+	}
+
+
+	@Override
+	public void setEnd(long end) {
+		this.end = end;
+	}
+
+
+	// splits the file into (up to) count byte ranges {start, end}, each starting right after a line break
+	public static List<long[]> split(String path, int count) throws IOException {
+		List<long[]> ranges = new ArrayList<>(count);
+		try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+			long size = file.length();
+			long start = 0;
+			for (int i = 1; i <= count && start < size; i++) {
+				long end = (i == count) ? size : nextLineStart(file, Math.max(start, size * i / count));
+				if (end > start)
+					ranges.add(new long[] {start, end});
+				start = end;
+			}
+		}
+		return ranges;
+	}
+
+
+	// the offset right after the first '\n' at / after position - 1
+	private static long nextLineStart(RandomAccessFile file, long position) throws IOException {
+		if (position == 0)
+			return 0;
+
+		byte[] chunk = new byte[BUFFER_SIZE];
+		long current = position - 1;
+		file.seek(current);
+		while (true) {
+			int read = file.read(chunk);
+			if (read <= 0)
+				return file.length();
+			for (int i = 0; i < read; i++)
+				if (chunk[i] == '\n')
+					return current + i + 1;
+			current += read;
+		}
+	}
+
+
+	@Override
+	public long getLineOffset() {
+		return lineOffset;
+	}
+
+	@Override
+	public long getOffset() {
+		return offset;
+	}
+
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
@@ -0,0 +1,91 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONObject;
+
+
+/*
+ * NDJSON file of the rows that could not be written (after all retries).
+ * Every line holds the target table, the byte offset of the row in the source file, the error and the original record,
+ * so a replay can re-ingest only these rows into only the table that failed.
+ * The file is created on the first failure, a clean load leaves nothing behind.
+ * A resumed load appends to the file of the interrupted load instead of replacing it.
+ */
+public class DeadLetterFile implements Closeable, Flushable {
+
+	public static final String		FIELD_TABLE		=	"table";
+	public static final String		FIELD_OFFSET	=	"offset";
+	public static final String		FIELD_ERROR		=	"error";
+	public static final String		FIELD_RECORD	=	"record";
+
+	private static final String		SUFFIX			=	".failed";
+
+	private final String			path;
+	private final boolean			append;
+	private BufferedWriter			out;
+	private long					count;
+
+
+	public DeadLetterFile(String path, boolean append) {
+		this.path	=	path;
+		this.append	=	append;
+	}
+
+
+	// the dead-letter file of a dataset file
+	public static String pathFor(String pathSourceFile) {
+		return pathSourceFile + SUFFIX;
+	}
+
+
+	// called from the driver's callbacks, so it has to be thread safe
+	public synchronized void add(String table, long offset, String record, Throwable error) {
+		JSONObject json = new JSONObject();
+		json.put(FIELD_TABLE, table);
+		json.put(FIELD_OFFSET, offset);
+		json.put(FIELD_ERROR, String.valueOf(WriteErrors.unwrap(error)));
+		json.put(FIELD_RECORD, record);
+
+		try {
+			if (out == null)
+				out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path, append), StandardCharsets.UTF_8));
+			out.write(json.toString());
+			out.newLine();
+			count++;
+		}
+		catch (IOException e) {
+			System.out.println("ERROR - can not write to " + path + ", lost row at byte " + offset + ": " + e.getMessage());
+		}
+	}
+
+
+	public synchronized long getCount() {
+		return count;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+
+	@Override
+	public synchronized void flush() throws IOException {
+		if (out != null)
+			out.flush();
+	}
+
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (out != null)
+			out.close();
+		out = null;
+	}
+}
@@ -0,0 +1,138 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+
+/*
+ * Runs the decompression of a stream on its own thread, overlapped with the parsing of the lines.
+ * The decompressor fills chunks and hands them over through a bounded queue, the reader returns the
+ * empty chunks for reuse - so memory is fixed at CHUNK_COUNT chunks whatever the size of the file.
+ */
+public class DecompressionStage extends InputStream {
+
+	private static final int		CHUNK_SIZE		=	1 << 20;
+	private static final int		CHUNK_COUNT		=	8;
+
+
+	private static class Chunk {
+		final byte[]		data		=	new byte[CHUNK_SIZE];
+		int					length;		// -1 - end of the stream
+		IOException			error;
+	}
+
+
+	private final InputStream				source;
+	private final BlockingQueue<Chunk>		full	=	new ArrayBlockingQueue<>(CHUNK_COUNT);
+	private final BlockingQueue<Chunk>		empty	=	new ArrayBlockingQueue<>(CHUNK_COUNT);
+	private final Thread					decompressor;
+
+	private Chunk							current;
+	private int								position;
+
+
+	public DecompressionStage(InputStream source) {
+		this.source = source;
+		for (int i = 0; i < CHUNK_COUNT; i++)
+			empty.add(new Chunk());
+
+		this.decompressor = new Thread(this::decompress, "decompressor");
+		decompressor.setDaemon(true);
+		decompressor.start();
+	}
+
+
+	private void decompress() {
+		try {
+			while (true) {
+				Chunk chunk = empty.take();
+				try {
+					chunk.length = source.readNBytes(chunk.data, 0, CHUNK_SIZE);
+					if (chunk.length == 0)
+						chunk.length = -1;
+				}
+				catch (IOException e) {
+					chunk.error = e;
+				}
+				full.put(chunk);
+
+				if (chunk.length < 0 || chunk.error != null)
+					return;
+			}
+		}
+		catch (InterruptedException e) {
+			// closed by the reader
+		}
+		finally {
+			// closed here, never under a read in progress on this thread
+			try {
+				source.close();
+			}
+			catch (IOException e) {
+				// nothing more is read from it
+			}
+		}
+	}
+
+
+	// makes sure there is something to read in the current chunk, false at the end of the stream
+	private boolean fill() throws IOException {
+		if (current != null && position < current.length)
+			return true;
+		if (current != null && current.length < 0)
+			return false;
+
+		if (current != null)
+			empty.add(current);
+		try {
+			current = full.take();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while waiting for the decompressor", e);
+		}
+		position = 0;
+
+		if (current.error != null)
+			throw current.error;
+		return current.length > 0;
+	}
+
+
+	@Override
+	public int read() throws IOException {
+		if (!fill())
+			return -1;
+		return current.data[position++] & 0xff;
+	}
+
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		if (length == 0)
+			return 0;
+		if (!fill())
+			return -1;
+
+		int count = Math.min(length, current.length - position);
+		System.arraycopy(current.data, position, buffer, offset, count);
+		position += count;
+		return count;
+	}
+
+
+	@Override
+	public void close() throws IOException {
+		// the decompressor closes the source when it exits, the join makes sure it is closed once close returns
+		decompressor.interrupt();
+		try {
+			decompressor.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while waiting for the decompressor", e);
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+
+/*
+ * Index of a delta load - for every row key (64-bit hash of the key fields) the 64-bit hash of the content
+ * that was last written for it, so a reload of the same dump only writes the rows that changed.
+ * An open-addressing hash table (linear probing, 16 bytes a slot) in a memory-mapped file next to the dataset -
+ * off-heap, so millions of keys cost nothing on the heap and the OS persists the pages.
+ * A row is only put once all of its writes were acknowledged, so a crash can only lose entries (those rows are
+ * written again on the next load, the writes are idempotent) and never skip a row that was not written.
+ * The table doubles (into a new file, atomically renamed) when it is 70% full, up to 2^26 slots (a 1 GB mapping, ~47M keys).
+ * The header holds a hash of where the rows were written (cluster, keyspace, tables) - an index of another target
+ * (e.g. a recreated keyspace) is discarded, otherwise its rows would be skipped as unchanged and never written.
+ */
+public class DeltaIndex implements Closeable {
+
+	private static final String		SUFFIX				=	".delta";
+	private static final long		MAGIC				=	0x4857324445544131L;	// "HW2DETA1"
+	private static final int		HEADER_SIZE			=	32;						// magic, capacity, size, target
+	private static final int		SLOT_SIZE			=	16;						// key hash, content hash
+	private static final int		INITIAL_CAPACITY	=	1 << 20;
+	private static final int		MAX_CAPACITY		=	1 << 26;
+	private static final double		MAX_LOAD			=	0.7;
+
+	private final Path				path;
+	private final long				target;			// hash of the target
+	private FileChannel				channel;
+	private MappedByteBuffer		table;
+	private int						capacity;		// slots, a power of 2
+	private int						size;
+
+
+	// opens the index of a previous load into the same target, or creates an empty one
+	// target - where the rows are written, e.g. the cluster, keyspace and table ids
+	public DeltaIndex(String path, String target) throws IOException {
+		this.path	=	Paths.get(path);
+		this.target	=	hash(target);
+		if (Files.exists(this.path) && Files.size(this.path) >= HEADER_SIZE) {
+			map(this.path);
+			if (table.getLong(0) == MAGIC && table.getLong(24) == this.target) {
+				// the size in the header is only written on close, counted again in case the last load crashed
+				capacity	=	(int) table.getLong(8);
+				size		=	countKeys();
+				return;
+			}
+			if (table.getLong(0) == MAGIC)
+				System.out.println(path + " was written into another keyspace or cluster, starting a new one");
+			else
+				System.out.println(path + " is not a delta index, starting a new one");
+			channel.close();
+		}
+		create(this.path, INITIAL_CAPACITY);
+	}
+
+
+	// the delta index of a dataset file
+	public static String pathFor(String pathSourceFile) {
+		return pathSourceFile + SUFFIX;
+	}
+
+
+	// true when the content was already written for the key
+	public synchronized boolean contains(long key, long content) {
+		int mask = capacity - 1;
+		for (int slot = (int) mix(key) & mask; ; slot = (slot + 1) & mask) {
+			long stored = table.getLong(offsetOf(slot));
+			if (stored == 0)
+				return false;
+			if (stored == key)
+				return table.getLong(offsetOf(slot) + 8) == content;
+		}
+	}
+
+
+	// the content of the key was written (must only be called once all of its writes were acknowledged)
+	public synchronized void put(long key, long content) throws IOException {
+		if (size + 1 > capacity * MAX_LOAD)
+			grow();
+		if (insert(table, capacity, key, content))
+			size++;
+	}
+
+
+	public synchronized int size() {
+		return size;
+	}
+
+
+	// 64-bit hash of a string (FNV-1a over the chars, then a final mix). never 0, 0 marks an empty slot
+	public static long hash(String value) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < value.length(); i++)
+			h = (h ^ value.charAt(i)) * 0x100000001b3L;
+		h = mix(h);
+		return h == 0 ? 1 : h;
+	}
+
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+
+	private static int offsetOf(int slot) {
+		return HEADER_SIZE + slot * SLOT_SIZE;
+	}
+
+
+	// true when the key is new
+	private static boolean insert(MappedByteBuffer table, int capacity, long key, long content) {
+		int mask = capacity - 1;
+		for (int slot = (int) mix(key) & mask; ; slot = (slot + 1) & mask) {
+			long stored = table.getLong(offsetOf(slot));
+			if (stored == 0 || stored == key) {
+				table.putLong(offsetOf(slot), key);
+				table.putLong(offsetOf(slot) + 8, content);
+				return stored == 0;
+			}
+		}
+	}
+
+
+	private void grow() throws IOException {
+		if (capacity >= MAX_CAPACITY)
+			throw new IOException("delta index " + path + " is full (" + size + " keys)");
+
+		int newCapacity = capacity * 2;
+		Path temp = Paths.get(path.toString() + ".tmp");
+		MappedByteBuffer oldTable = table;
+		FileChannel oldChannel = channel;
+		int oldCapacity = capacity;
+
+		create(temp, newCapacity);
+		for (int slot = 0; slot < oldCapacity; slot++) {
+			long key = oldTable.getLong(offsetOf(slot));
+			if (key != 0)
+				insert(table, newCapacity, key, oldTable.getLong(offsetOf(slot) + 8));
+		}
+		writeSize();
+		table.force();
+		oldChannel.close();
+
+		// the mapping stays valid after the rename
+		Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+
+	private void create(Path file, int slots) throws IOException {
+		Files.deleteIfExists(file);
+		channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		table = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * SLOT_SIZE);
+		table.putLong(0, MAGIC);
+		table.putLong(8, slots);
+		table.putLong(24, target);
+		capacity = slots;
+		writeSize();
+	}
+
+
+	private void map(Path file) throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		table = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+	}
+
+
+	private int countKeys() {
+		int keys = 0;
+		for (int slot = 0; slot < capacity; slot++)
+			if (table.getLong(offsetOf(slot)) != 0)
+				keys++;
+		return keys;
+	}
+
+
+	private void writeSize() {
+		table.putLong(16, size);
+	}
+
+
+	@Override
+	public synchronized void close() throws IOException {
+		writeSize();
+		table.force();
+		channel.close();
+	}
+}
@@ -0,0 +1,158 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+
+/*
+ * Compares the WriteModes of the AsyncWriter on simulated requests (a fixed latency, no cluster needed),
+ * at every concurrency level - each mode is bounded by a limit of concurrent requests, like the AsyncWriter:
+ *   pool    - a blocking request per task on a fixed pool of platform threads (one thread per concurrent request)
+ *   async   - a future completed by a timer, no thread per request
+ *   virtual - a blocking request per task on a virtual thread per request (Java 21+, skipped before)
+ * For each: the cost of creating the threads, the memory held while all the requests are pending
+ * (heap, and live platform threads - each also reserves a native stack of -Xss) and the throughput.
+ * usage: ExecutorBenchmark [latency ms] [requests per run] [concurrency levels, e.g. 1000,2000,5000,10000]
+ */
+public class ExecutorBenchmark {
+
+	private interface Mode {
+		// runs the given number of requests, at most `concurrency` at once. release - the request may end
+		void run(int requests, int concurrency, long latencyMillis, CountDownLatch release) throws Exception;
+	}
+
+
+	private static final MemoryMXBean		MEMORY	=	ManagementFactory.getMemoryMXBean();
+
+
+	public static void main(String[] args) throws Exception {
+		long latencyMillis	=	args.length > 0 ? Long.parseLong(args[0]) : 5;
+		int requests		=	args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+		String levels		=	args.length > 2 ? args[2] : "1000,2000,5000,10000";
+		boolean virtual		=	WriteMode.newVirtualPerTask() != null;
+
+		System.out.println("latency: " + latencyMillis + " ms, requests: " + requests + ", java " + Runtime.version().feature());
+		if (!virtual)
+			System.out.println("virtual threads are not available on this JVM, the virtual mode is skipped");
+
+		for (String level : levels.split(",")) {
+			int concurrency = Integer.parseInt(level.trim());
+			System.out.println("concurrency " + concurrency + ":");
+			measure("pool", ExecutorBenchmark::runPool, requests, concurrency, latencyMillis);
+			measure("async", ExecutorBenchmark::runAsync, requests, concurrency, latencyMillis);
+			if (virtual)
+				measure("virtual", ExecutorBenchmark::runVirtual, requests, concurrency, latencyMillis);
+		}
+	}
+
+
+	private static void measure(String name, Mode mode, int requests, int concurrency, long latencyMillis) throws Exception {
+		// creation - `concurrency` requests started and ended right away
+		long startNanos = System.nanoTime();
+		mode.run(concurrency, concurrency, 0, new CountDownLatch(0));
+		double creationMillis = (System.nanoTime() - startNanos) / 1e6;
+
+		// footprint - `concurrency` requests pending at once
+		System.gc();
+		long heapBefore		=	MEMORY.getHeapMemoryUsage().getUsed();
+		int threadsBefore	=	Thread.activeCount();
+		CountDownLatch release = new CountDownLatch(1);
+		Thread pending = new Thread(() -> {
+			try {
+				mode.run(concurrency, concurrency, 0, release);
+			}
+			catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+		pending.start();
+		Thread.sleep(500);
+		System.gc();
+		long heap		=	MEMORY.getHeapMemoryUsage().getUsed() - heapBefore;
+		int threads		=	Thread.activeCount() - threadsBefore - 1;		// not counting `pending` itself
+		release.countDown();
+		pending.join();
+
+		// throughput
+		startNanos = System.nanoTime();
+		mode.run(requests, concurrency, latencyMillis, new CountDownLatch(0));
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+
+		System.out.println(String.format("  %-8s creation: %8.1f ms   pending: %8.1f MB heap, %6d platform threads   throughput: %10.0f req/s",
+				name, creationMillis, heap / (double) (1 << 20), threads, requests / seconds));
+	}
+
+
+	private static void runPool(int requests, int concurrency, long latencyMillis, CountDownLatch release) throws Exception {
+		ExecutorService pool = WriteMode.newPlatformPool(concurrency, "benchmark");
+		runBlocking(pool, requests, concurrency, latencyMillis, release);
+	}
+
+
+	private static void runVirtual(int requests, int concurrency, long latencyMillis, CountDownLatch release) throws Exception {
+		runBlocking(WriteMode.newVirtualPerTask(), requests, concurrency, latencyMillis, release);
+	}
+
+
+	private static void runBlocking(ExecutorService executor, int requests, int concurrency, long latencyMillis, CountDownLatch release) throws Exception {
+		Semaphore limit = new Semaphore(concurrency);
+		for (int i = 0; i < requests; i++) {
+			limit.acquire();
+			executor.execute(() -> {
+				try {
+					release.await();
+					if (latencyMillis > 0)
+						Thread.sleep(latencyMillis);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				finally {
+					limit.release();
+				}
+			});
+		}
+		limit.acquire(concurrency);
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+	}
+
+
+	private static void runAsync(int requests, int concurrency, long latencyMillis, CountDownLatch release) throws Exception {
+		ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+		CompletableFuture<Void> released = new CompletableFuture<>();
+		Thread releaser = new Thread(() -> {
+			try {
+				release.await();
+				released.complete(null);
+			}
+			catch (InterruptedException e) {
+				released.completeExceptionally(e);
+			}
+		});
+		releaser.start();
+
+		Semaphore limit = new Semaphore(concurrency);
+		for (int i = 0; i < requests; i++) {
+			limit.acquire();
+			CompletableFuture<Void> request = new CompletableFuture<>();
+			released.thenRun(() -> {
+				if (latencyMillis > 0)
+					timer.schedule(() -> request.complete(null), latencyMillis, TimeUnit.MILLISECONDS);
+				else
+					request.complete(null);
+			});
+			request.whenComplete((result, error) -> limit.release());
+		}
+		limit.acquire(concurrency);
+		timer.shutdown();
+		releaser.join();
+	}
+}
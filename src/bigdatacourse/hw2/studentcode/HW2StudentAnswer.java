@@ -1,35 +1,113 @@
 package bigdatacourse.hw2.studentcode;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.nio.file.Paths;
 import java.time.Instant;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.TreeSet;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
 
-import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import com.datastax.oss.driver.api.core.CqlIdentifier;
 import com.datastax.oss.driver.api.core.CqlSession;
 import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.PagingState;
 import com.datastax.oss.driver.api.core.cql.PreparedStatement;
 import com.datastax.oss.driver.api.core.cql.ResultSet;
 import com.datastax.oss.driver.api.core.cql.Row;
+import com.datastax.oss.driver.api.core.metadata.Metadata;
+import com.datastax.oss.driver.api.core.metadata.schema.TableMetadata;
+import com.datastax.oss.driver.api.core.type.codec.registry.CodecRegistry;
 
 import bigdatacourse.hw2.HW2API;
+import bigdatacourse.hw2.Item;
 
 public class HW2StudentAnswer implements HW2API{
 	
 	// general consts
 	public static final String		NOT_AVAILABLE_VALUE 	=		"na";
+	
+	// failed writes are retried with exponential backoff + jitter, then saved to a dead-letter file
+	private static final int		MAX_WRITE_ATTEMPTS		=		Integer.getInteger("hw2.writeAttempts", 5);
+	private static final int		RETRY_BASE_DELAY_MILLIS	=		Integer.getInteger("hw2.retryBaseMs", 100);
+	private static final int		RETRY_MAX_DELAY_MILLIS	=		Integer.getInteger("hw2.retryMaxMs", 10000);
+	
+	// how often the loaders save their checkpoint (the acknowledged position in the file) for resume
+	private static final int		CHECKPOINT_INTERVAL_SECONDS	=	Integer.getInteger("hw2.checkpointSeconds", 10);
+	
+	// threads of the load pipeline stages - the dataset files are split into hw2.readers byte ranges, each read by its own
+	// thread, the lines are parsed by hw2.parsers threads and bound / sent by hw2.binders threads (-Dhw2.parsers=N ...)
+	private static final int		READER_THREADS			=		Integer.getInteger("hw2.readers", Math.max(1, Runtime.getRuntime().availableProcessors() / 4));
+	private static final int		PARSER_THREADS			=		Integer.getInteger("hw2.parsers", Runtime.getRuntime().availableProcessors());
+	private static final int		BINDER_THREADS			=		Integer.getInteger("hw2.binders", Math.max(1, Runtime.getRuntime().availableProcessors() / 4));
+	
+	// rows per hand-off between the stages, and batches buffered between two stages
+	private static final int		STAGE_BATCH_ROWS		=		Integer.getInteger("hw2.stageBatchRows", 256);
+	private static final int		STAGE_RING_SLOTS		=		Integer.getInteger("hw2.stageRingSlots", 64);
+	
+	// "stream" - the files are read through a read buffer, "mmap" - through a memory mapping (-Dhw2.reader=mmap)
+	private static final boolean	MAPPED_READER			=		"mmap".equals(System.getProperty("hw2.reader", "stream"));
+	
+	// how often the loaders print their progress (rows/sec, latency, ETA...)
+	private static final int		PROGRESS_INTERVAL_SECONDS	=	Integer.getInteger("hw2.progressSeconds", 5);
+	
+	// concurrent writes sent to the cluster by the loaders - starts at hw2.maxInFlight and adapts (AIMD)
+	// between the min and the cap, growing while latency stays under hw2.latencyTargetMs
+	private static final int		MAX_IN_FLIGHT_WRITES	=		Integer.getInteger("hw2.maxInFlight", 250);
+	private static final int		MIN_IN_FLIGHT_WRITES	=		Integer.getInteger("hw2.minInFlight", 8);
+	private static final int		CAP_IN_FLIGHT_WRITES	=		Integer.getInteger("hw2.maxInFlightCap", 2048);
+	private static final int		LATENCY_TARGET_MILLIS	=		Integer.getInteger("hw2.latencyTargetMs", 100);
+	
+	// how the writes are sent - "async" (executeAsync), "pool" (blocking, on hw2.maxInFlight platform threads)
+	// or "virtual" (blocking, a virtual thread per write - Java 21+) (-Dhw2.writeMode=virtual)
+	private static final WriteMode	WRITE_MODE				=		WriteMode.parse(System.getProperty("hw2.writeMode", "async"));
+	
+	// delta load - rows whose content did not change since the last load of the same file are skipped (-Dhw2.delta=true)
+	private static final boolean	DELTA_LOAD				=		Boolean.getBoolean("hw2.delta");
+	
+	// item() lookups are cached (-Dhw2.itemCacheSize=0 disables the cache) - items almost never change and the
+	// lookups are skewed to few items. "not exists" is cached for a shorter time, it may be loaded meanwhile
+	private static final int		ITEM_CACHE_SIZE			=		Integer.getInteger("hw2.itemCacheSize", 10000);
+	private static final int		ITEM_CACHE_TTL_SECONDS	=		Integer.getInteger("hw2.itemCacheTtlSeconds", 600);
+	private static final int		ITEM_CACHE_NEGATIVE_TTL_SECONDS	=	Integer.getInteger("hw2.itemCacheNegativeTtlSeconds", 30);
+	private static final int		ITEM_CACHE_SEGMENTS		=		Integer.getInteger("hw2.itemCacheSegments", 16);
+	
+	// concurrent identical item / reviews queries share one round trip; coalescing stats are kept for up to
+	// hw2.coalesceStatsKeys keys (asin / reviewerID)
+	private static final int		COALESCE_STATS_KEYS		=		Integer.getInteger("hw2.coalesceStatsKeys", 10000);
+	private static final int		STATS_TOP_KEYS			=		10;
+	
+	// concurrent item lookups sent by items() (all of its callers together) - a page of items takes about one round trip
+	private static final int		ITEMS_FAN_OUT			=		Integer.getInteger("hw2.itemsFanOut", 64);
+	
+	// rows fetched per round trip when all the reviews of a user / item are printed (-Dhw2.reviewsPageSize=N)
+	private static final int		REVIEWS_PAGE_SIZE		=		Integer.getInteger("hw2.reviewsPageSize", 1000);
+	
+	// rows of a table sorted in memory by the prepare step, before they are written to a run and merged (-Dhw2.prepareRunRows=N)
+	private static final int		PREPARE_RUN_ROWS		=		Integer.getInteger("hw2.prepareRunRows", 500000);
+	
+	// single partition UNLOGGED batches for the review tables (-Dhw2.batchSize=N -Dhw2.batchLingerMs=N)
+	private static final int		MAX_BATCH_SIZE			=		Integer.getInteger("hw2.batchSize", 10);
+	private static final int		MAX_BATCH_BYTES			=		Integer.getInteger("hw2.batchBytes", 32 * 1024);
+	private static final int		BATCH_LINGER_MILLIS		=		Integer.getInteger("hw2.batchLingerMs", 50);
+	private static final int		MAX_PENDING_PARTITIONS	=		Integer.getInteger("hw2.batchPartitions", 10000);
+	
+	// "token" - writes are grouped and routed by their owning replica, "file" - writes leave in file order (-Dhw2.routing=file)
+	private static final boolean	TOKEN_AWARE_ROUTING		=		!"file".equals(System.getProperty("hw2.routing", "token"));
 
 	// CQL stuff
 	
@@ -80,6 +158,49 @@ public class HW2StudentAnswer implements HW2API{
 	
 	public static final String ITEM_REVIEW_INSERT = "INSERT INTO " + TABLE_ITEM_REVIEWS + "(asin, ts, reviewerid, reviewerName, rating, summary, reviewText) VALUES (?, ?, ?, ?, ?, ?, ?)";
 	public static final String ITEM_REVIEW_SELECT = "SELECT ts, asin, reviewerid, reviewername, rating, summary, reviewtext FROM " + TABLE_ITEM_REVIEWS + " WHERE asin = (?)";
+	
+	// the partitions are clustered by ts DESC, so the cluster reads only the slice of the range, up to the limit
+	public static final String USER_REVIEW_SELECT_LATEST = USER_REVIEW_SELECT + " LIMIT ?";
+	public static final String USER_REVIEW_SELECT_RANGE = USER_REVIEW_SELECT + " AND ts >= ? AND ts < ? LIMIT ?";
+	
+	public static final String ITEM_REVIEW_SELECT_LATEST = ITEM_REVIEW_SELECT + " LIMIT ?";
+	public static final String ITEM_REVIEW_SELECT_RANGE = ITEM_REVIEW_SELECT + " AND ts >= ? AND ts < ? LIMIT ?";
+
+	
+	// the fields that identify a line of each file, for the delta load
+	private static final String[]	ITEMS_KEY				=		{ "asin" };
+	private static final String[]	REVIEWS_KEY				=		{ "reviewerID", "asin", "unixReviewTime" };
+	
+	// how a line of the dataset files maps to each table (compiled against the prepared inserts in initialize)
+	static final TableMapping ITEMS_MAPPING = new TableMapping(TABLE_ITEMS)
+			.text("asin", "asin") // UID must be present, a missing one fails the row
+			.text("title", "title", NOT_AVAILABLE_VALUE)
+			.text("image", "imUrl", NOT_AVAILABLE_VALUE)
+			.flattenedTextSet("categories", "categories")
+			.text("description", "description", NOT_AVAILABLE_VALUE)
+			.partitionKey("asin");
+	
+	private static final TableMapping ITEM_REVIEWS_MAPPING = new TableMapping(TABLE_ITEM_REVIEWS)
+			.text("asin", "asin")
+			.epochSeconds("ts", "unixReviewTime")
+			.text("reviewerid", "reviewerID")
+			.text("reviewername", "reviewerName", NOT_AVAILABLE_VALUE)
+			.real("rating", "overall")
+			.text("summary", "summary", NOT_AVAILABLE_VALUE)
+			.text("reviewtext", "reviewText", NOT_AVAILABLE_VALUE)
+			.partitionKey("asin")
+			.batched();
+	
+	private static final TableMapping USER_REVIEWS_MAPPING = new TableMapping(TABLE_USER_REVIEWS)
+			.text("reviewerid", "reviewerID")
+			.epochSeconds("ts", "unixReviewTime")
+			.text("reviewername", "reviewerName", NOT_AVAILABLE_VALUE)
+			.text("asin", "asin")
+			.real("rating", "overall")
+			.text("summary", "summary", NOT_AVAILABLE_VALUE)
+			.text("reviewtext", "reviewText", NOT_AVAILABLE_VALUE)
+			.partitionKey("reviewerID")
+			.batched();
 
 	
 	// cassandra session
@@ -91,9 +212,38 @@ public class HW2StudentAnswer implements HW2API{
 	
 	PreparedStatement pUserReviewInsert;
 	PreparedStatement pUserReviewSelect;
+	PreparedStatement pUserReviewSelectLatest;
+	PreparedStatement pUserReviewSelectRange;
 	
 	PreparedStatement pItemReviewInsert;
 	PreparedStatement pItemReviewSelect;
+	PreparedStatement pItemReviewSelectLatest;
+	PreparedStatement pItemReviewSelectRange;
+	
+	// compiled mappings, by table
+	private final Map<String, TableMapping.Binder> binders = new HashMap<>();
+	
+	// read-through cache of item(), null when disabled
+	private ReadThroughCache<String, Item> itemCache;
+	
+	// the lookups in flight for items()
+	private final Semaphore itemsFanOut = new Semaphore(ITEMS_FAN_OUT);
+	
+	// coalescing of concurrent identical queries - items by asin, review pages by query + key + page
+	private final SingleFlight<String, Item> itemFlight = new SingleFlight<>("item queries", COALESCE_STATS_KEYS);
+	private final SingleFlight<String, ReviewsPage> reviewsFlight = new SingleFlight<>("reviews queries", COALESCE_STATS_KEYS);
+	
+	
+	// a page of reviews, and where the next one starts (null - the last page)
+	private static class ReviewsPage {
+		final List<Review>	reviews;
+		final PagingState	next;
+		
+		ReviewsPage(List<Review> reviews, PagingState next) {
+			this.reviews	=	reviews;
+			this.next		=	next;
+		}
+	}
 	
 	
 	@Override
@@ -122,12 +272,23 @@ public class HW2StudentAnswer implements HW2API{
 			return;
 		}
 		
+		stats();
+		
 		System.out.println("Closing Cassandra connection...");
 		session.close();
 		System.out.println("Closing Cassandra connection... Done");
 	}
 
 	
+	@Override
+	public void stats() {
+		if (itemCache != null)
+			System.out.println("item cache - " + itemCache.report());
+		System.out.println(itemFlight.report(STATS_TOP_KEYS));
+		System.out.println(reviewsFlight.report(STATS_TOP_KEYS));
+	}
+	
+	
 	@Override
 	public void createTables() {
 		System.out.print("Creating tables ... ");
@@ -149,9 +310,22 @@ public class HW2StudentAnswer implements HW2API{
 		
 		pUserReviewInsert = session.prepare(USER_REVIEW_INSERT);
 		pUserReviewSelect = session.prepare(USER_REVIEW_SELECT);
+		pUserReviewSelectLatest = session.prepare(USER_REVIEW_SELECT_LATEST);
+		pUserReviewSelectRange = session.prepare(USER_REVIEW_SELECT_RANGE);
 		
 		pItemReviewInsert = session.prepare(ITEM_REVIEW_INSERT);
 		pItemReviewSelect = session.prepare(ITEM_REVIEW_SELECT);
+		pItemReviewSelectLatest = session.prepare(ITEM_REVIEW_SELECT_LATEST);
+		pItemReviewSelectRange = session.prepare(ITEM_REVIEW_SELECT_RANGE);
+		
+		CodecRegistry codecs = session.getContext().getCodecRegistry();
+		binders.put(TABLE_ITEMS, ITEMS_MAPPING.compile(pItemInsert, codecs));
+		binders.put(TABLE_ITEM_REVIEWS, ITEM_REVIEWS_MAPPING.compile(pItemReviewInsert, codecs));
+		binders.put(TABLE_USER_REVIEWS, USER_REVIEWS_MAPPING.compile(pUserReviewInsert, codecs));
+		
+		if (ITEM_CACHE_SIZE > 0)
+			itemCache = new ReadThroughCache<>(ITEM_CACHE_SIZE, ITEM_CACHE_TTL_SECONDS * 1000L, ITEM_CACHE_NEGATIVE_TTL_SECONDS * 1000L,
+												ITEM_CACHE_SEGMENTS, this::fetchItem);
 		
 		System.out.println("DONE.");
 	}
@@ -159,326 +333,536 @@ public class HW2StudentAnswer implements HW2API{
 	
 	@Override
 	public void loadItems(String pathItemsFile) throws Exception {
-        int maxThreads	= 250;
-        long c=0;
-        
-        String asin;
-        String desc;
-        String title;
-        String img;
-        JSONObject json;
-        Set<String> categories = new HashSet<>();
-        
-        int count = 0;
-		int catIn;
-        
-        // creating the thread factors
-        ExecutorService executor = Executors.newFixedThreadPool(maxThreads);
-        BoundStatement bstmt;
-        File file = new File(pathItemsFile);
-		try {
-			String content = new String(Files.readAllBytes(Paths.get(file.toURI())));
-			for (String row : content.split("\n")){
-			    c++;
-			    final long x = c;
-			    
-				json = new JSONObject(row);
-				
-				asin = json.getString("asin"); // UID must be present, no need for try block
-                
-    			JSONArray cats; //= ((JSONArray) item.get("categories")).getJSONArray(0);
-    			catIn = 0;
-                
-    			while (true) {
-    				try {
-    					cats = (JSONArray) ((JSONArray) json.get("categories")).get(catIn);
-    					catIn++;
-    					
-    					for (int i = 0 ; i < cats.length(); i++) {
-    						categories.add(cats.get(i).toString());
-    					}
-    				}
-    				catch (org.json.JSONException e) {
-    					break;
-    				}				
-    			}
-    			
-                try {
-                	img = json.getString("imUrl");
-                }
-                catch (Exception e){
-                	img = NOT_AVAILABLE_VALUE;
-                }
-                
-                try {
-                	title = json.getString("title");
-                }
-                catch (Exception e){
-                	title = NOT_AVAILABLE_VALUE;
-                }
-                
-                try {
-                	desc = json.getString("description");
-                }
-                catch (Exception e){
-                	desc = NOT_AVAILABLE_VALUE;
-                }
-                
-                
-        		bstmt = pItemInsert.bind()
-        				.setString(0, asin)
-        				.setString(1, title)
-        				.setString(2, img)
-        				.setSet(3, categories, String.class)
-        				.setString(4, desc);
-                
-
-                final BoundStatement bstmt1 = bstmt;
-                executor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        session.execute(bstmt1);
-                        System.out.println("version 3 - added " + x);
-                    }
-                });
-                
-                categories.clear();
-                
-			}
-		}
-		catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		executor.shutdown();
-		executor.awaitTermination(1, TimeUnit.HOURS);
+		loadItems(pathItemsFile, false);
 	}
-			
+	
+	
+	@Override
+	public void loadItems(String pathItemsFile, boolean resume) throws Exception {
+		// a file, a folder or a glob - all the files are loaded as one job, feeding the same bounded async writer.
+		// every file is split into ranges parsed in parallel.
+		// resume - every range continues from what the checkpoint of the interrupted load says is written
+		load("items", DatasetFiles.resolve(pathItemsFile, DatasetFiles.ITEMS_PATTERN), resume, ITEMS_KEY, binders.get(TABLE_ITEMS));
+		
+		// the cached items (and "not exists") may be stale now
+		if (itemCache != null)
+			itemCache.clear();
+	}
+	
 	
 	@Override
 	public void item(String asin) {
-		BoundStatement bstmt = pItemSelect.bind().setString(0, asin);
-		ResultSet rs = session.execute(bstmt);
-		Row row = rs.one();
+		Item item = itemCache != null ? itemCache.get(asin) : fetchItem(asin);
 		
-		if (row == null) {
+		if (item == null) {
 			System.out.println("not exists");
+			return;
 		}
 		
-		while (row != null) {
-			System.out.println("asin: " + row.getString(0));
-			System.out.println("title: " + row.getString(1));
-			System.out.println("image: " + row.getString(2));
-			System.out.println("categories: " + row.getSet(3, String.class));
-			System.out.println("description: " + row.getString(4));
-			row = rs.one();
+		System.out.println("asin: " + item.asin);
+		System.out.println("title: " + item.title);
+		System.out.println("image: " + item.image);
+		System.out.println("categories: " + item.categories);
+		System.out.println("description: " + item.description);
+	}
+	
+	
+	@Override
+	public List<Item> items(Collection<String> asins) {
+		// every distinct asin is looked up once (cache, then an async query), all of them in parallel,
+		// up to ITEMS_FAN_OUT in flight - the submitting thread waits for a slot
+		Map<String, CompletableFuture<Item>> lookups = new HashMap<>();
+		for (String asin : asins)
+			lookups.computeIfAbsent(asin, key -> itemCache != null ? itemCache.getAsync(key, this::fetchItemAsync) : fetchItemAsync(key));
+		
+		List<Item> items = new ArrayList<>(asins.size());
+		for (String asin : asins) {
+			try {
+				items.add(lookups.get(asin).join());
+			}
+			catch (CompletionException e) {
+				// as item() would throw it
+				throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+			}
 		}
+		return items;
+	}
+	
+	
+	private CompletableFuture<Item> fetchItemAsync(String asin) {
+		return itemFlight.executeAsync(asin, asin, () -> {
+			itemsFanOut.acquireUninterruptibly();
+			try {
+				BoundStatement bstmt = pItemSelect.bind().setString(0, asin);
+				return session.executeAsync(bstmt).toCompletableFuture()
+						.thenApply(rs -> {
+							Row row = rs.one();
+							return row == null ? (Item) null : itemOf(row);
+						})
+						.whenComplete((item, error) -> itemsFanOut.release());
+			}
+			catch (RuntimeException e) {
+				itemsFanOut.release();
+				throw e;
+			}
+		});
+	}
+	
+	
+	// the item from the cluster, null when it does not exist. concurrent lookups of an asin share one query
+	private Item fetchItem(String asin) {
+		return itemFlight.execute(asin, asin, () -> {
+			BoundStatement bstmt = pItemSelect.bind().setString(0, asin);
+			Row row = session.execute(bstmt).one();
+			return row == null ? null : itemOf(row);
+		});
+	}
+	
+	
+	// a row of ITEMS_SELECT (the categories keep their order - sorted, as the set is stored)
+	private static Item itemOf(Row row) {
+		return new Item(row.getString(0), row.getString(1), row.getString(2), Collections.unmodifiableSet(new LinkedHashSet<>(row.getSet(3, String.class))), row.getString(4));
 	}
 	
 	
 	@Override
 	public void userReviews(String reviewerID) {
-		BoundStatement bstmt = pUserReviewSelect.bind().setString(0, reviewerID);
-		ResultSet rs = session.execute(bstmt);
-		Row row = rs.one();
-		int count = 0;
+		userReviews(reviewerID, 0);
+	}
+	
+	
+	@Override
+	public void userReviews(String reviewerID, int limit) {
+		if (limit > 0)
+			printReviews(pUserReviewSelectLatest, reviewerID, limit);
+		else
+			printReviews(pUserReviewSelect, reviewerID);
+	}
+	
+	
+	@Override
+	public void userReviews(String reviewerID, Instant from, Instant to, int limit) {
+		printReviews(pUserReviewSelectRange, reviewerID, rangeStart(from), rangeEnd(to), limit > 0 ? limit : Integer.MAX_VALUE);
+	}
+	
+	
+	@Override
+	public String userReviewsPage(String reviewerID, int pageSize, String pagingState) {
+		return printReviewsPage(pUserReviewSelect, reviewerID, pageSize, pagingState);
+	}
+
+	
+	@Override
+	public void loadReviews(String pathReviewsFile) throws Exception {
+		loadReviews(pathReviewsFile, false);
+	}
+	
+	
+	@Override
+	public void loadReviews(String pathReviewsFile, boolean resume) throws Exception {
+		// single pass over the file - every line is parsed once and fans out to both review tables.
+		// each table gets its own write (and its own retries), so a failure in one table never replays the file.
+		// a file, a folder or a glob - all the files are loaded as one job, feeding the same bounded async writer.
+		// every file is split into ranges parsed in parallel.
+		// resume - every range continues from what the checkpoint of the interrupted load says is written
+		load("reviews", DatasetFiles.resolve(pathReviewsFile, DatasetFiles.REVIEWS_PATTERN), resume, REVIEWS_KEY,
+				binders.get(TABLE_ITEM_REVIEWS), binders.get(TABLE_USER_REVIEWS));
+		System.out.println("DONE.");
+	}
+	
+	
+	// loads dataset files into the tables of the given mappings - every line is parsed once and bound for each table.
+	// batched tables are grouped per partition into UNLOGGED batches, the others are written one row at a time.
+	// keyFields - what identifies a line, for the delta load
+	private void load(String name, List<String> paths, boolean resume, String[] keyFields, TableMapping.Binder... tables) throws Exception {
+		// every file has its own delta index - the ones already opened are closed when the job can not be built
+		Map<String, DeltaIndex> deltas = new HashMap<>();
+		LoadJob job;
+		try {
+			if (DELTA_LOAD)
+				for (String path : paths)
+					deltas.put(path, new DeltaIndex(DeltaIndex.pathFor(path), deltaTarget(tables)));
+			job = newLoadJob(name, paths, resume);
+		}
+		catch (Exception e) {
+			for (DeltaIndex delta : deltas.values()) {
+				try {
+					delta.close();
+				}
+				catch (IOException closeError) {
+					e.addSuppressed(closeError);
+				}
+			}
+			throw e;
+		}
+		LongAdder unchanged = new LongAdder();
+		AsyncWriter writer = job.getWriter();
+		TokenRouter router = job.getRouter();
 		
-		if (row == null) {
-			System.out.println("not exists");
+		TokenRouter batchRouter = TOKEN_AWARE_ROUTING && router.isEnabled() ? router : null;
+		PartitionBatcher[] batchers = new PartitionBatcher[tables.length];
+		String[] tableNames = new String[tables.length];
+		for (int i = 0; i < tables.length; i++) {
+			tableNames[i] = tables[i].getTable();
+			if (tables[i].isBatched())
+				batchers[i] = new PartitionBatcher(writer, MAX_BATCH_SIZE, MAX_BATCH_BYTES, BATCH_LINGER_MILLIS, MAX_PENDING_PARTITIONS, batchRouter);
 		}
 		
-		while (row != null) {
-			System.out.print("time: " + row.getInstant(0));
-			System.out.print(", asin: " + row.getString(1));
-			System.out.print(", reviewerID: " + row.getString(2));
-			System.out.print(", reviewerName: " + row.getString(3));
-			System.out.print(", rating: " + (int)row.getFloat(4));
-			System.out.print(", summary: " + row.getString(5));
-			System.out.println(", reviewText: " + row.getString(6));
-			count++;
-			row = rs.one();
+		// the cleanup runs also when the parse failed - the rows held in the batchers are still sent,
+		// and the timers, threads and files of the job are released
+		try {
+			job.parse(row -> {
+				JSONObject json;
+				BoundStatement[] bound = new BoundStatement[tables.length];
+				
+				// BoundStatements are immutable, so they are safe to hand over to the driver
+				try {
+					json = row.getJson();
+					
+					// delta load - the row is only written when its content changed since it was last written,
+					// and it is put in the index once all of its writes were acknowledged
+					DeltaIndex delta = deltas.get(row.getPath());
+					String key = delta == null ? null : deltaKey(json, keyFields);
+					if (key != null) {
+						long keyHash = DeltaIndex.hash(key);
+						long contentHash = DeltaIndex.hash(row.line);
+						if (delta.contains(keyHash, contentHash)) {
+							unchanged.increment();
+							return;
+						}
+						row.onWritten(() -> deltaPut(delta, keyHash, contentHash));
+					}
+					
+					for (int i = 0; i < tables.length; i++)
+						bound[i] = tables[i].bind(json);
+				}
+				catch (JSONException e) {
+					// a broken row is skipped on its own, the rest of the file is still loaded
+					row.fail(e, tableNames);
+					return;
+				}
+				
+				// the row is done (for the checkpoint) once all of its writes completed
+				row.expectWrites(tables.length);
+				for (int i = 0; i < tables.length; i++) {
+					if (batchers[i] != null) {
+						batchers[i].add(tables[i].partitionKey(json), bound[i], row.callback(tableNames[i]));
+					}
+					else {
+						// the driver would compute it per request, computing it here lets the router measure it
+						if (TOKEN_AWARE_ROUTING)
+							bound[i] = bound[i].setRoutingToken(router.tokenOf(bound[i].getRoutingKey()));
+						writer.write(bound[i], row.callback(tableNames[i]));
+					}
+				}
+			});
 		}
+		finally {
+			try {
+				for (PartitionBatcher batcher : batchers)
+					if (batcher != null)
+						batcher.close();
+			}
+			finally {
+				closeLoad(job, deltas, unchanged);
+			}
+		}
+	}
+	
+	
+	// closes the job and then the delta indexes, whose last entries come from the writes the job waits for
+	private static void closeLoad(LoadJob job, Map<String, DeltaIndex> deltas, LongAdder unchanged) throws Exception {
+		try {
+			job.close();
+		}
+		finally {
+			if (DELTA_LOAD) {
+				long keys = 0;
+				for (DeltaIndex delta : deltas.values()) {
+					keys += delta.size();
+					delta.close();
+				}
+				System.out.println("delta - unchanged rows skipped: " + unchanged.sum() + ", keys indexed: " + keys);
+			}
+		}
+	}
+	
+	
+	@Override
+	public void prepareItems(String pathItemsFile) throws Exception {
+		prepare(DatasetFiles.resolve(pathItemsFile, DatasetFiles.ITEMS_PATTERN), ITEMS_MAPPING);
+	}
+	
+	
+	@Override
+	public void prepareReviews(String pathReviewsFile) throws Exception {
+		// every line is parsed once, for both review tables
+		prepare(DatasetFiles.resolve(pathReviewsFile, DatasetFiles.REVIEWS_PATTERN), ITEM_REVIEWS_MAPPING, USER_REVIEWS_MAPPING);
+	}
+	
+	
+	// the prepare step needs no connection - the values are serialized with the default codecs
+	private static void prepare(List<String> paths, TableMapping... mappings) throws IOException {
+		List<TableMapping.Encoder> encoders = new ArrayList<>();
+		for (TableMapping mapping : mappings)
+			encoders.add(mapping.encoder());
+		for (String path : paths)
+			StagePreparer.prepare(path, encoders, PREPARE_RUN_ROWS);
+		System.out.println("DONE.");
+	}
+	
+	
+	@Override
+	public void loadStaged(String pathStageFiles) throws Exception {
+		// the rows of every file are sorted by partition key, so the batches of a partition fill up back to back
+		List<String> paths = DatasetFiles.resolve(pathStageFiles, "*" + StageFile.SUFFIX);
+		AdaptiveLimiter limiter = newLimiter();
+		RetryPolicy retryPolicy = new RetryPolicy(MAX_WRITE_ATTEMPTS, RETRY_BASE_DELAY_MILLIS, RETRY_MAX_DELAY_MILLIS);
+		StagedLoad job = new StagedLoad(session, "staged", paths, binders, limiter, retryPolicy,
+										WRITE_MODE.newExecutor(MAX_IN_FLIGHT_WRITES), PROGRESS_INTERVAL_SECONDS);
+		AsyncWriter writer = job.getWriter();
+		TokenRouter router = job.getRouter();
 		
-		System.out.println("total reviews: " + count);
+		TokenRouter batchRouter = TOKEN_AWARE_ROUTING && router.isEnabled() ? router : null;
+		Map<String, PartitionBatcher> batchers = new HashMap<>();
+		for (TableMapping.Binder binder : binders.values())
+			if (binder.isBatched())
+				batchers.put(binder.getTable(), new PartitionBatcher(writer, MAX_BATCH_SIZE, MAX_BATCH_BYTES, BATCH_LINGER_MILLIS, MAX_PENDING_PARTITIONS, batchRouter));
 		
+		try {
+			job.load((binder, partitionKey, bstmt, callback) -> {
+				PartitionBatcher batcher = batchers.get(binder.getTable());
+				if (batcher != null) {
+					batcher.add(partitionKey, bstmt, callback);
+				}
+				else {
+					if (TOKEN_AWARE_ROUTING)
+						bstmt = bstmt.setRoutingToken(router.tokenOf(bstmt.getRoutingKey()));
+					writer.write(bstmt, callback);
+				}
+			});
+		}
+		finally {
+			// also when the load failed, the timers and threads of the job must not outlive it
+			try {
+				for (PartitionBatcher batcher : batchers.values())
+					batcher.close();
+			}
+			finally {
+				job.close();
+			}
+		}
+		
+		if (itemCache != null)
+			itemCache.clear();
+	}
+	
+	
+	// where the rows of the tables go - the cluster, the keyspace and the ids of the tables (a recreated table gets a new id)
+	private String deltaTarget(TableMapping.Binder... tables) {
+		Metadata metadata = session.getMetadata();
+		CqlIdentifier keyspace = session.getKeyspace().orElse(null);
+		StringBuilder target = new StringBuilder(metadata.getClusterName().orElse("")).append('/').append(keyspace);
+		for (TableMapping.Binder binder : tables) {
+			UUID id = keyspace == null ? null : metadata.getKeyspace(keyspace)
+												.flatMap(ks -> ks.getTable(binder.getTable()))
+												.flatMap(TableMetadata::getId)
+												.orElse(null);
+			target.append('/').append(binder.getTable()).append(':').append(id);
+		}
+		return target.toString();
 	}
-
+	
+	
+	// the key fields of a line joined, null when one is missing (the row fails to bind anyway)
+	private static String deltaKey(JSONObject json, String[] keyFields) {
+		StringBuilder key = new StringBuilder(64);
+		for (String field : keyFields) {
+			Object value = json.opt(field);
+			if (value == null)
+				return null;
+			key.append(value).append('\u0001');
+		}
+		return key.toString();
+	}
+	
+	
+	private static void deltaPut(DeltaIndex delta, long keyHash, long contentHash) {
+		try {
+			delta.put(keyHash, contentHash);
+		}
+		catch (IOException e) {
+			// the row is written anyway, it is only written again on the next delta load
+			System.out.println("ERROR - can not update the delta index: " + e.getMessage());
+		}
+	}
+	
 	
 	@Override
-	public void loadReviews(String pathReviewsFile) throws Exception {
-		// we tried to go over the file once and insert into both tables, but it caused errors and this is the compromise
-		loadReviewsByItem(pathReviewsFile);
-		loadReviewsByUser(pathReviewsFile);
-		System.out.println("DONE.");
+	public void replay(String pathFailedRowsFile) throws Exception {
+		// re-ingests only the rows of a dead-letter file, each into the table that failed.
+		// rows that fail again go to a new dead-letter file next to it
+		LoadJob job = newLoadJob("replay", List.of(pathFailedRowsFile), false);
+		AsyncWriter writer = job.getWriter();
+		
+		try {
+			job.parse(row -> {
+				String table = null;
+				BoundStatement bstmt;
+				// a broken dead letter (e.g. the last line, cut short by a crash) is skipped on its own
+				try {
+					JSONObject failed = row.getJson();
+					table = failed.getString(DeadLetterFile.FIELD_TABLE);
+					row.setRecord(failed.getString(DeadLetterFile.FIELD_RECORD));
+					
+					TableMapping.Binder binder = binders.get(table);
+					if (binder == null)
+						throw new JSONException("unknown table " + table);
+					bstmt = binder.bind(new JSONObject(failed.getString(DeadLetterFile.FIELD_RECORD)));
+				}
+				catch (JSONException e) {
+					row.fail(e, table);
+					return;
+				}
+				
+				row.expectWrites(1);
+				writer.write(bstmt, row.callback(table));
+			});
+		}
+		finally {
+			job.close();
+		}
 	}
 	
 	
-	private void loadReviewsByItem(String pathReviewsFile) throws Exception {
-        int maxThreads	= 250;
-        long c=0;
-
-        // creating the thread factors
-        ExecutorService executor = Executors.newFixedThreadPool(maxThreads);
-        BoundStatement bstmt;
-
-        JSONObject json;
-        String rname;
-        String summary;
-        String reviewText;
-        try {
-            BufferedReader reader = new BufferedReader(new FileReader(pathReviewsFile));
-            String line = reader.readLine();
-            while (line != null) {
-                c++;
-                final long x = c;
-                json = new JSONObject(line);
-
-                try {
-                	rname = json.getString("reviewerName");
-                }
-                catch (Exception e){
-                	rname = NOT_AVAILABLE_VALUE;
-                }
-                
-                try {
-                	summary = json.getString("summary");
-                }
-                catch (Exception e){
-                	summary = NOT_AVAILABLE_VALUE;
-                }
-                
-                try {
-                	reviewText = json.getString("reviewText");
-                }
-                catch (Exception e){
-                	reviewText = NOT_AVAILABLE_VALUE;
-                }
-                
-                bstmt = pItemReviewInsert.bind()
-                		.setString(0, json.getString("asin"))
-                        .setInstant(1, Instant.ofEpochSecond(json.getLong("unixReviewTime")))
-                        .setString(2, json.getString("reviewerID"))
-                        .setString(3, rname)
-                        .setFloat(4, (float)json.getDouble("overall"))
-                        .setString(5, summary)
-                        .setString(6, reviewText);
-                final BoundStatement bound = bstmt;
-                executor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        session.execute(bound);
-                        System.out.println("ReviewsByItem - added " + x);
-                    }
-                });
-                
-                line = reader.readLine();
-            }
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        executor.shutdown();
-        executor.awaitTermination(1, TimeUnit.HOURS);
+	// in the POOL write mode the limit never goes over the pool's threads
+	private static AdaptiveLimiter newLimiter() {
+		return new AdaptiveLimiter(MAX_IN_FLIGHT_WRITES, MIN_IN_FLIGHT_WRITES, WRITE_MODE.maxInFlight(CAP_IN_FLIGHT_WRITES, MAX_IN_FLIGHT_WRITES),
+									LATENCY_TARGET_MILLIS);
 	}
-
 	
-	private void loadReviewsByUser(String pathReviewsFile) throws Exception {
-        int maxThreads	= 250;
-        long c=0;
-
-        // creating the thread factors
-        ExecutorService executor = Executors.newFixedThreadPool(maxThreads);
-        BoundStatement bstmt;
-        
-        JSONObject json;
-        String rname;
-        String summary;
-        String reviewText;
-        try {
-            BufferedReader reader = new BufferedReader(new FileReader(pathReviewsFile));
-            String line = reader.readLine();
-            while (line != null) {
-                c++;
-                final long x = c;
-                json = new JSONObject(line);
-
-                try {
-                	rname = json.getString("reviewerName");
-                }
-                catch (Exception e){
-                	rname = NOT_AVAILABLE_VALUE;
-                }
-                
-                try {
-                	summary = json.getString("summary");
-                }
-                catch (Exception e){
-                	summary = NOT_AVAILABLE_VALUE;
-                }
-                
-                try {
-                	reviewText = json.getString("reviewText");
-                }
-                catch (Exception e){
-                	reviewText = NOT_AVAILABLE_VALUE;
-                }
-                
-                
-                bstmt = pUserReviewInsert.bind()
-                		.setString(0, json.getString("reviewerID"))
-                        .setInstant(1, Instant.ofEpochSecond(json.getLong("unixReviewTime")))
-                        .setString(2, rname)
-                        .setString(3, json.getString("asin"))
-                        .setFloat(4, (float)json.getDouble("overall"))
-                        .setString(5, summary)
-                        .setString(6, reviewText);
-                final BoundStatement bound = bstmt;
-
-                executor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        session.execute(bound);
-                        System.out.println("ReviewsByUser - added " + x);
-                    }
-                });
-                line = reader.readLine();
-            }
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        executor.shutdown();
-        executor.awaitTermination(1, TimeUnit.HOURS);
+	
+	private LoadJob newLoadJob(String name, List<String> paths, boolean resume) throws Exception {
+		AdaptiveLimiter limiter = newLimiter();
+		RetryPolicy retryPolicy = new RetryPolicy(MAX_WRITE_ATTEMPTS, RETRY_BASE_DELAY_MILLIS, RETRY_MAX_DELAY_MILLIS);
+		return new LoadJob(session, name, paths, resume, READER_THREADS, PARSER_THREADS, BINDER_THREADS, STAGE_BATCH_ROWS, STAGE_RING_SLOTS,
+							MAPPED_READER, limiter, retryPolicy, WRITE_MODE.newExecutor(MAX_IN_FLIGHT_WRITES),
+							CHECKPOINT_INTERVAL_SECONDS, PROGRESS_INTERVAL_SECONDS);
+	}
+	
+	
+	@Override
+	public void itemReviews(String asin) {
+		itemReviews(asin, 0);
+	}
+	
+	
+	@Override
+	public void itemReviews(String asin, int limit) {
+		if (limit > 0)
+			printReviews(pItemReviewSelectLatest, asin, limit);
+		else
+			printReviews(pItemReviewSelect, asin);
+	}
+	
+	
+	@Override
+	public void itemReviews(String asin, Instant from, Instant to, int limit) {
+		printReviews(pItemReviewSelectRange, asin, rangeStart(from), rangeEnd(to), limit > 0 ? limit : Integer.MAX_VALUE);
 	}
 	
 	
 	@Override
-	public void itemReviews(String asin) {		
-		BoundStatement bstmt = pItemReviewSelect.bind().setString(0, asin);
-		ResultSet rs = session.execute(bstmt);
-		Row row = rs.one();
+	public String itemReviewsPage(String asin, int pageSize, String pagingState) {
+		return printReviewsPage(pItemReviewSelect, asin, pageSize, pagingState);
+	}
+	
+	
+	// streams the reviews page by page through one buffered writer. values - of the select, the key (asin / reviewerID) first.
+	// a LIMIT up to the page size is a single round trip
+	private void printReviews(PreparedStatement select, Object... values) {
+		PrintWriter out = newOutput();
+		PagingState pagingState = null;
 		int count = 0;
 		
-		if (row == null) {
-			System.out.println("not exists");
-		}
+		do {
+			ReviewsPage page = fetchReviewsPage(select, values, REVIEWS_PAGE_SIZE, pagingState);
+			for (Review review : page.reviews)
+				printReview(review, out);
+			count += page.reviews.size();
+			pagingState = page.next;
+		} while (pagingState != null);
 		
-		while (row != null) {
-			System.out.print("time: " + row.getInstant(0));
-			System.out.print(", asin: " + row.getString(1));
-			System.out.print(", reviewerID: " + row.getString(2));
-			System.out.print(", reviewerName: " + row.getString(3));
-			System.out.print(", rating: " + (int)row.getFloat(4));
-			System.out.print(", summary: " + row.getString(5));
-			System.out.println(", reviewText: " + row.getString(6));
-			count++;
-			row = rs.one();
+		if (count == 0) {
+			out.println("not exists");
 		}
+		out.println("total reviews: " + count);
+		out.flush();
+	}
+	
+	
+	// prints the rows of a single round trip, continuing from pagingState (as printed by the previous page)
+	private String printReviewsPage(PreparedStatement select, String key, int pageSize, String pagingState) {
+		ReviewsPage page = fetchReviewsPage(select, new Object[] { key }, pageSize, pagingState == null ? null : PagingState.fromString(pagingState));
+		PrintWriter out = newOutput();
+		for (Review review : page.reviews)
+			printReview(review, out);
 		
-		System.out.println("total reviews: " + count);
+		out.println("page reviews: " + page.reviews.size() + (page.next == null ? ", last page" : ", next page: " + page.next));
+		out.flush();
+		return page.next == null ? null : page.next.toString();
+	}
+	
+	
+	// a single round trip - the callers that ask for the same page of the same query meanwhile share it
+	private ReviewsPage fetchReviewsPage(PreparedStatement select, Object[] values, int pageSize, PagingState pagingState) {
+		StringBuilder flightKey = new StringBuilder(select.getQuery());
+		for (Object value : values)
+			flightKey.append('\u0001').append(value);
+		flightKey.append('\u0001').append(pageSize).append('\u0001').append(pagingState == null ? "" : pagingState.toString());
 		
+		return reviewsFlight.execute(flightKey.toString(), values[0].toString(), () -> {
+			BoundStatement bstmt = select.bind(values).setPageSize(pageSize);
+			if (pagingState != null) {
+				// rejects a paging state of another query
+				bstmt = bstmt.setPagingState(pagingState, session);
+			}
+			ResultSet rs = session.execute(bstmt);
+			
+			int count = rs.getAvailableWithoutFetching();
+			List<Review> reviews = new ArrayList<>(count);
+			for (int i = 0; i < count; i++)
+				reviews.add(Review.of(rs.one()));
+			return new ReviewsPage(reviews, rs.getExecutionInfo().getSafePagingState());
+		});
+	}
+	
+	
+	// the open ends of a time range - the bounds of a CQL timestamp
+	private static Instant rangeStart(Instant from) {
+		return from != null ? from : Instant.ofEpochMilli(Long.MIN_VALUE);
+	}
+	
+	private static Instant rangeEnd(Instant to) {
+		return to != null ? to : Instant.ofEpochMilli(Long.MAX_VALUE);
+	}
+	
+	
+	private static void printReview(Review review, PrintWriter out) {
+		out.append("time: ").append(String.valueOf(review.time))
+			.append(", asin: ").append(review.asin)
+			.append(", reviewerID: ").append(review.reviewerID)
+			.append(", reviewerName: ").append(review.reviewerName)
+			.append(", rating: ").append(Integer.toString((int)review.rating))
+			.append(", summary: ").append(review.summary)
+			.append(", reviewText: ").append(review.reviewText)
+			.append(System.lineSeparator());
+	}
+	
+	
+	// buffered, flushed (never closed) by the caller
+	private static PrintWriter newOutput() {
+		return new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
 	}
 
 
@@ -0,0 +1,70 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/*
+ * Lock-free latency histogram (microseconds) for the progress reports.
+ * Buckets are log-linear - every power of two is split into SUB_BUCKETS, so a percentile
+ * is accurate to ~1/SUB_BUCKETS of its value. Recording is a single atomic increment.
+ */
+public class LatencyHistogram {
+
+	private static final int		SUB_BUCKET_BITS		=	3;
+	private static final int		SUB_BUCKETS			=	1 << SUB_BUCKET_BITS;
+	private static final int		BUCKETS				=	64 * SUB_BUCKETS;
+
+	private final AtomicLongArray	counts				=	new AtomicLongArray(BUCKETS);
+
+
+	public void record(long nanos) {
+		counts.incrementAndGet(indexOf(Math.max(1, nanos / 1000)));
+	}
+
+
+	private static int indexOf(long micros) {
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		if (exponent < SUB_BUCKET_BITS)
+			return (int) micros;
+		int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+
+	// the upper value (microseconds) of a bucket
+	private static long valueOf(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int sub = index % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+
+
+	// returns the counts recorded since the last drain and resets them
+	public long[] drain() {
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			snapshot[i] = counts.getAndSet(i, 0);
+		return snapshot;
+	}
+
+
+	// the percentile (0-100) of a drained snapshot, in microseconds. -1 when it is empty
+	public static long percentile(long[] snapshot, double percentile) {
+		long total = 0;
+		for (long count : snapshot)
+			total += count;
+		if (total == 0)
+			return -1;
+
+		long rank = (long) Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return valueOf(i);
+		}
+		return valueOf(snapshot.length - 1);
+	}
+}
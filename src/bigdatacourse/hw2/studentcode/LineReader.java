@@ -0,0 +1,36 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+
+/*
+ * Reads a dataset file (one JSON record per line) line by line, tracking the byte offset of every line.
+ * DatasetReader streams the file through a read buffer, MappedDatasetReader scans a memory mapping of it.
+ * Compressed files (detected from their magic bytes) are always streamed, with the offsets of the decompressed content.
+ */
+public interface LineReader extends Closeable {
+
+	// returns the next line (without the line break), or null at the end of the file / range
+	public String readLine() throws IOException;
+
+	// skips to the given byte offset (a line start). only valid before the first line is read
+	public void seek(long offset) throws IOException;
+
+	// the reader stops before the first line that starts at / after end
+	public void setEnd(long end);
+
+	// byte offset where the last returned line starts
+	public long getLineOffset();
+
+	// byte offset right after the last returned line (where the next line starts)
+	public long getOffset();
+
+
+	public static LineReader open(String path, boolean mapped) throws IOException {
+		Compression compression = Compression.detect(path);
+		if (compression != Compression.NONE)
+			return new DatasetReader(compression.open(path));
+		return mapped ? new MappedDatasetReader(path) : new DatasetReader(path);
+	}
+}
@@ -0,0 +1,536 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+
+
+/*
+ * One load of dataset files into the db, run as a pipeline of stages:
+ *   read  - every file is split into byte ranges (aligned to line breaks), a pool of reader threads takes the ranges
+ *           of all the files in turns (the first range of each file, then the second of each...), so many files
+ *           are read side by side and a large one does not hold back the rest
+ *   parse - worker threads turn the lines into JSONObjects
+ *   bind  - worker threads run the RowHandler, which binds the rows and sends them to the AsyncWriter
+ *   write - the AsyncWriter, shared by everything (so the in-flight limit is global)
+ * The stages hand batches of rows to each other through preallocated RingBuffers, and every stage reports
+ * its utilization with the progress, so the bottleneck (I/O, JSON or the cluster) shows and each stage can
+ * get its own number of threads. A compressed file can not be split, it is read by a single reader.
+ * The job owns everything around the writes - the writer (a single in-flight limit for all the files), and the
+ * dead-letter file, checkpoint and progress of every file - and the RowHandler only binds a row and sends it
+ * with the callback the job gives it.
+ */
+public class LoadJob {
+
+	// binds and sends one line of the file. called concurrently by the bind threads, in no particular order
+	public interface RowHandler {
+		void handle(Row row) throws InterruptedException;
+	}
+
+
+	// one line of the file
+	public class Row {
+		public final String				line;
+		public final long				offset;		// where the line starts in the file
+		private final FileLoad			file;
+		private final Checkpoint.Range	range;
+		private String					record;		// what goes to the dead-letter file, the line by default
+		private JSONObject				json;		// set by the parse stage
+		private JSONException			parseError;
+		private int						writes;		// not completed yet
+		private boolean					writeFailed;
+		private Runnable				onWritten;
+
+		private Row(String line, long offset, FileLoad file, Checkpoint.Range range) {
+			this.line		=	line;
+			this.offset		=	offset;
+			this.file		=	file;
+			this.range		=	range;
+			this.record		=	line;
+		}
+
+		// the dataset file of the line
+		public String getPath() {
+			return file.path;
+		}
+
+		// the parsed line, throws the parse error of a broken line
+		public JSONObject getJson() {
+			if (parseError != null)
+				throw parseError;
+			return json;
+		}
+
+		// the line wraps the actual record (e.g. a replayed dead letter), failures save the record itself
+		public void setRecord(String record) {
+			this.record = record;
+		}
+
+		// must be called before the row's writes are sent
+		public void expectWrites(int writes) {
+			synchronized (this) {
+				this.writes += writes;
+			}
+			range.expect(offset, writes);
+		}
+
+		// runs once all the writes of the row were acknowledged (not when one of them failed),
+		// must be set before the writes are sent
+		public void onWritten(Runnable action) {
+			this.onWritten = action;
+		}
+
+		// the row can not be bound - it goes to the dead-letter file for each of the tables
+		public void fail(Throwable error, String... tables) {
+			System.out.println("ERROR - skipping row at byte " + offset + " of " + file.path + ": " + error.getMessage());
+			file.failedRows.increment();
+			for (String table : tables)
+				file.deadLetters.add(table, offset, record, error);
+		}
+
+		// the callback of a write of this row - a failed write (after the writer's retries) goes to the dead-letter file,
+		// either way the write is done as far as the checkpoint is concerned
+		// (nothing is printed per row, the progress reporter shows the counts)
+		public AsyncWriter.Callback callback(String table) {
+			return error -> {
+				if (error != null) {
+					file.failedWrites.increment();
+					file.deadLetters.add(table, offset, record, error);
+				}
+				else
+					file.written.increment();
+
+				boolean written;
+				synchronized (this) {
+					writeFailed |= error != null;
+					written = --writes == 0 && !writeFailed;
+				}
+				// before the ack, so the checkpoint never passes a row the action did not see
+				if (written && onWritten != null)
+					onWritten.run();
+				range.ack(offset);
+			};
+		}
+	}
+
+
+	// the unit of hand-off between the stages
+	private static class RowBatch {
+		final Row[]		rows;
+		int				size;
+
+		RowBatch(int capacity) {
+			this.rows = new Row[capacity];
+		}
+
+		void clear() {
+			for (int i = 0; i < size; i++)
+				rows[i] = null;
+			size = 0;
+		}
+	}
+
+
+	// one of the files of the job
+	private class FileLoad {
+		final String					path;
+		final String					displayName;
+		final List<Checkpoint.Range>	ranges;
+		final DeadLetterFile			deadLetters;
+		final Checkpoint				checkpoint;
+		final long						totalBytes;			// what is left to read, -1 - unknown (compressed)
+		final AtomicInteger				rangesLeft;
+
+		final LongAdder					rows			=	new LongAdder();
+		final LongAdder					bytes			=	new LongAdder();
+		final LongAdder					failedRows		=	new LongAdder();
+		final LongAdder					written			=	new LongAdder();
+		final LongAdder					failedWrites	=	new LongAdder();
+
+		FileLoad(String path, boolean resume, int splits, long checkpointSeconds) throws Exception {
+			this.path			=	path;
+			this.displayName	=	new File(path).getName();
+			this.deadLetters	=	new DeadLetterFile(DeadLetterFile.pathFor(path), resume);
+
+			List<Checkpoint.Range> saved = resume ? Checkpoint.load(Checkpoint.pathFor(path)) : null;
+			if (saved != null) {
+				// the saved ranges are kept (even if the number of readers changed), each continues from its own safe point
+				this.ranges = saved;
+				System.out.println("resuming " + path + " from its checkpoint");
+			}
+			else {
+				if (resume)
+					System.out.println("no checkpoint for " + path + ", loading from the start");
+				this.ranges = new ArrayList<>();
+				Compression compression = Compression.detect(path);
+				if (compression != Compression.NONE) {
+					System.out.println(path + " is " + compression + " compressed, reading it with a single reader");
+					ranges.add(new Checkpoint.Range(0, Long.MAX_VALUE, 0));
+				}
+				else {
+					for (long[] range : DatasetReader.split(path, splits))
+						ranges.add(new Checkpoint.Range(range[0], range[1], range[0]));
+				}
+			}
+			this.checkpoint	=	new Checkpoint(Checkpoint.pathFor(path), ranges, deadLetters, checkpointSeconds);
+			this.rangesLeft	=	new AtomicInteger(ranges.size());
+
+			long left = 0;
+			for (Checkpoint.Range range : ranges)
+				left = (range.getEnd() == Long.MAX_VALUE || left < 0) ? -1 : left + range.getEnd() - range.safeOffset();
+			this.totalBytes = left;
+		}
+	}
+
+
+	// a range of a file, for the reader pool
+	private static class RangeTask {
+		final FileLoad			file;
+		final Checkpoint.Range	range;
+
+		RangeTask(FileLoad file, Checkpoint.Range range) {
+			this.file	=	file;
+			this.range	=	range;
+		}
+	}
+
+
+	private final List<FileLoad>			files		=	new ArrayList<>();
+	private final boolean					mappedReader;
+	private final AdaptiveLimiter			limiter;
+	private final TokenRouter				router;
+	private final AsyncWriter				writer;
+
+	private final String					name;
+	private final int						readers;
+	private final int						parsers;
+	private final int						binders;
+	private final int						batchRows;
+	private final int						ringSlots;
+	private final long						progressSeconds;
+	private long							totalBytes;
+	private ProgressReporter				progress;
+	private List<PipelineStage>				stages		=	new ArrayList<>();
+	private long							lastBlockedNanos;
+	private long							lastReportNanos	=	System.nanoTime();
+
+
+	// paths - the dataset files, loaded together (every file keeps its own checkpoint and dead-letter file)
+	// readers - threads of the read stage, also the number of byte ranges each file is split into (when it is not resumed)
+	// parsers, binders - threads of the parse and bind stages
+	// batchRows, ringSlots - rows per hand-off between the stages, batches buffered between two stages
+	// resume - continue from the checkpoints of an interrupted load of the same files
+	// mappedReader - the files are read through a memory mapping (MappedDatasetReader) instead of a read buffer
+	// writeExecutor - the writes are blocking executes on it (see WriteMode), null - executeAsync
+	public LoadJob(CqlSession session, String name, List<String> paths, boolean resume,
+					int readers, int parsers, int binders, int batchRows, int ringSlots, boolean mappedReader,
+					AdaptiveLimiter limiter, RetryPolicy retryPolicy, ExecutorService writeExecutor,
+					long checkpointSeconds, long progressSeconds) throws Exception {
+		this.name				=	name;
+		this.readers			=	readers;
+		this.parsers			=	parsers;
+		this.binders			=	binders;
+		this.batchRows			=	batchRows;
+		this.ringSlots			=	ringSlots;
+		this.mappedReader		=	mappedReader;
+		this.progressSeconds	=	progressSeconds;
+		this.limiter			=	limiter;
+		this.router				=	new TokenRouter(session);
+		this.writer				=	new AsyncWriter(session, limiter, retryPolicy, router, writeExecutor);
+
+		for (String path : paths) {
+			FileLoad file = new FileLoad(path, resume, readers, checkpointSeconds);
+			files.add(file);
+			totalBytes = (file.totalBytes < 0 || totalBytes < 0) ? -1 : totalBytes + file.totalBytes;
+		}
+		if (paths.size() > 1)
+			System.out.println(name + " - loading " + paths.size() + " files");
+	}
+
+
+	// runs the read, parse and bind stages until the whole file went through them. the writes may still be in flight
+	public void parse(RowHandler handler) throws Exception {
+		// the ranges of all the files in turns - the first range of every file, then the second...
+		Queue<RangeTask> tasks = new ConcurrentLinkedQueue<>();
+		for (int i = 0; ; i++) {
+			boolean any = false;
+			for (FileLoad file : files) {
+				if (i < file.ranges.size()) {
+					tasks.add(new RangeTask(file, file.ranges.get(i)));
+					any = true;
+				}
+			}
+			if (!any)
+				break;
+		}
+		int readerThreads = Math.max(1, Math.min(readers, tasks.size()));
+
+		PipelineStage read		=	new PipelineStage("read", readerThreads);
+		PipelineStage parse		=	new PipelineStage("parse", parsers);
+		PipelineStage bind		=	new PipelineStage("bind", binders);
+		stages = List.of(read, parse, bind);
+
+		RingBuffer<RowBatch> readRing	=	new RingBuffer<>(ringSlots, readerThreads, () -> new RowBatch(batchRows));
+		RingBuffer<RowBatch> parseRing	=	new RingBuffer<>(ringSlots, parsers, () -> new RowBatch(batchRows));
+
+		progress = new ProgressReporter(name, this::rows, this::bytes, totalBytes, writer, limiter, this::stageReport, progressSeconds);
+
+		List<Thread> threads = new ArrayList<>();
+		List<Exception> errors = new ArrayList<>();
+		for (int i = 0; i < readerThreads; i++) {
+			threads.add(stageThread("reader-" + i, errors, threads, () -> {
+				try {
+					RangeTask task;
+					while ((task = tasks.poll()) != null) {
+						readRange(task.file, task.range, readRing, read);
+						task.file.rangesLeft.decrementAndGet();
+					}
+				}
+				finally {
+					readRing.producerDone();
+				}
+			}));
+		}
+		for (int i = 0; i < parsers; i++) {
+			threads.add(stageThread("parser-" + i, errors, threads, () -> {
+				try {
+					parseBatches(readRing, parseRing, parse);
+				}
+				finally {
+					parseRing.producerDone();
+				}
+			}));
+		}
+		for (int i = 0; i < binders; i++)
+			threads.add(stageThread("binder-" + i, errors, threads, () -> bindBatches(parseRing, handler, bind)));
+
+		synchronized (threads) {
+			for (Thread thread : threads)
+				thread.start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		if (!errors.isEmpty())
+			throw errors.get(0);
+	}
+
+
+	private interface StageWork {
+		void run() throws Exception;
+	}
+
+
+	// a thread of a stage - the first failure of any stage stops the whole pipeline
+	private Thread stageThread(String threadName, List<Exception> errors, List<Thread> threads, StageWork work) {
+		return new Thread(() -> {
+			try {
+				work.run();
+			}
+			catch (Exception e) {
+				synchronized (errors) {
+					errors.add(e);
+					if (errors.size() > 1)
+						return;
+				}
+				// the other stages may be blocked on a ring buffer that will never move again
+				synchronized (threads) {
+					for (Thread thread : threads)
+						if (thread != Thread.currentThread())
+							thread.interrupt();
+				}
+			}
+		}, threadName);
+	}
+
+
+	// read stage - the lines of a range, in batches. every row is registered in the checkpoint with a hold
+	// that the bind stage releases, so the range can not move past it while it is in the pipeline
+	private void readRange(FileLoad file, Checkpoint.Range range, RingBuffer<RowBatch> out, PipelineStage stage) throws Exception {
+		try (LineReader reader = LineReader.open(file.path, mappedReader)) {
+			reader.seek(range.safeOffset());
+			reader.setEnd(range.getEnd());
+
+			RowBatch batch = out.claim();
+			long startNanos = System.nanoTime();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				file.bytes.add(reader.getOffset() - reader.getLineOffset());
+				if (line.isEmpty()) {
+					range.register(reader.getLineOffset(), reader.getOffset(), 0);
+					continue;
+				}
+				file.rows.increment();
+				range.register(reader.getLineOffset(), reader.getOffset(), 1);
+				batch.rows[batch.size++] = new Row(line, reader.getLineOffset(), file, range);
+
+				if (batch.size == batch.rows.length) {
+					stage.addBusy(System.nanoTime() - startNanos);
+					out.publish(batch);
+					batch = out.claim();
+					startNanos = System.nanoTime();
+				}
+			}
+			stage.addBusy(System.nanoTime() - startNanos);
+
+			if (batch.size > 0)
+				out.publish(batch);
+			else
+				out.release(batch);
+		}
+	}
+
+
+	// parse stage - broken lines keep their error, the handler fails them (it knows their tables)
+	private void parseBatches(RingBuffer<RowBatch> in, RingBuffer<RowBatch> out, PipelineStage stage) throws InterruptedException {
+		RowBatch batch;
+		while ((batch = in.take()) != null) {
+			RowBatch parsed = out.claim();
+			long startNanos = System.nanoTime();
+			for (int i = 0; i < batch.size; i++) {
+				Row row = batch.rows[i];
+				try {
+					row.json = new JSONObject(row.line);
+				}
+				catch (JSONException e) {
+					row.parseError = e;
+				}
+				parsed.rows[i] = row;
+			}
+			parsed.size = batch.size;
+			stage.addBusy(System.nanoTime() - startNanos);
+
+			batch.clear();
+			in.release(batch);
+			out.publish(parsed);
+		}
+	}
+
+
+	// bind stage - the handler sends the row's writes, then the row's own hold is released
+	private void bindBatches(RingBuffer<RowBatch> in, RowHandler handler, PipelineStage stage) throws InterruptedException {
+		RowBatch batch;
+		while ((batch = in.take()) != null) {
+			long startNanos = System.nanoTime();
+			for (int i = 0; i < batch.size; i++) {
+				Row row = batch.rows[i];
+				handler.handle(row);
+				row.range.ack(row.offset);
+			}
+			stage.addBusy(System.nanoTime() - startNanos);
+
+			batch.clear();
+			in.release(batch);
+		}
+	}
+
+
+	// utilization of every stage since the last report, the bind stage's includes the time it waited for in-flight slots
+	private String stageReport() {
+		long now		=	System.nanoTime();
+		long blocked	=	limiter.getBlockedNanos();
+
+		StringBuilder sb = new StringBuilder("stages: ");
+		for (PipelineStage stage : stages)
+			sb.append(stage == stages.get(0) ? "" : " ").append(stage.getName()).append(String.format(" %.0f%%", stage.intervalUtilization()));
+		if (!stages.isEmpty()) {
+			double waiting = 100.0 * (blocked - lastBlockedNanos) / Math.max(1, now - lastReportNanos) / binders;
+			sb.append(String.format(" (%.0f%% waiting for the writer)", Math.min(100.0, waiting)));
+		}
+
+		// the files being read, when there are several
+		if (files.size() > 1) {
+			int done = 0;
+			for (FileLoad file : files) {
+				if (file.rangesLeft.get() == 0)
+					done++;
+				else if (file.rows.sum() > 0)
+					sb.append("\n  ").append(fileProgress(file));
+			}
+			sb.append("\n  files done: ").append(done).append("/").append(files.size());
+		}
+
+		lastBlockedNanos	=	blocked;
+		lastReportNanos		=	now;
+		return sb.toString();
+	}
+
+
+	private static String fileProgress(FileLoad file) {
+		String progress = file.displayName + " - rows: " + file.rows.sum() + ", written: " + file.written.sum() + ", failed: " + file.failedWrites.sum();
+		if (file.totalBytes > 0)
+			progress += String.format(" (%.1f%%)", 100.0 * file.bytes.sum() / file.totalBytes);
+		return progress;
+	}
+
+
+	private long rows() {
+		long rows = 0;
+		for (FileLoad file : files)
+			rows += file.rows.sum();
+		return rows;
+	}
+
+	private long bytes() {
+		long bytes = 0;
+		for (FileLoad file : files)
+			bytes += file.bytes.sum();
+		return bytes;
+	}
+
+	private long failedRows() {
+		long failedRows = 0;
+		for (FileLoad file : files)
+			failedRows += file.failedRows.sum();
+		return failedRows;
+	}
+
+
+	// waits for the writes in flight, saves the final checkpoints and prints the summary
+	public void close() throws Exception {
+		writer.close();
+		if (progress != null)
+			progress.close();
+		for (FileLoad file : files) {
+			file.checkpoint.close();
+			file.deadLetters.close();
+		}
+
+		if (files.size() > 1)
+			for (FileLoad file : files)
+				System.out.println("  " + fileProgress(file) + ", skipped: " + file.failedRows.sum());
+		System.out.println(name + " - rows: " + rows() + ", skipped: " + failedRows() +
+							", written: " + writer.getSucceeded() + ", failed: " + writer.getFailed() + ", retries: " + writer.getRetried());
+		StringBuilder utilization = new StringBuilder("stage utilization -");
+		for (PipelineStage stage : stages)
+			utilization.append(String.format("%s %s: %.0f%% of %d threads", stage == stages.get(0) ? "" : ",",
+												stage.getName(), stage.totalUtilization(), stage.getThreads()));
+		System.out.println(utilization);
+		System.out.println(router.report());
+		System.out.println("in-flight limit: " + limiter.getLimit() + " (lowered " + limiter.getDecreases() + " times, senders waited "
+							+ TimeUnit.NANOSECONDS.toMillis(limiter.getBlockedNanos()) + " ms for a slot)");
+		for (FileLoad file : files)
+			if (file.deadLetters.getCount() > 0)
+				System.out.println(file.deadLetters.getCount() + " failed rows were saved to " + file.deadLetters.getPath() + " (use replay to load them)");
+	}
+
+
+	public AsyncWriter getWriter() {
+		return writer;
+	}
+
+	public TokenRouter getRouter() {
+		return router;
+	}
+}
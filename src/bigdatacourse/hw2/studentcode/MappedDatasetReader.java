@@ -0,0 +1,138 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+
+/*
+ * Reads a dataset file through a memory mapping (FileChannel.map) instead of read() calls.
+ * Newlines are scanned directly in the mapped pages, 8 bytes at a time (one long read, a SWAR test for a '\n' byte),
+ * and every line is bulk-copied from its slice and decoded - without the read buffer copy of DatasetReader.
+ * The file is mapped in windows (a MappedByteBuffer is limited to 2GB), a line that crosses the end
+ * of a window is read again from a new window that starts at that line.
+ */
+public class MappedDatasetReader implements LineReader {
+
+	private static final long		WINDOW_SIZE			=	256L << 20;
+	private static final int		INITIAL_LINE_SIZE	=	1 << 12;
+	private static final long		NEWLINES			=	0x0a0a0a0a0a0a0a0aL;	// '\n' in every byte
+	private static final long		LOW_BITS			=	0x0101010101010101L;
+	private static final long		HIGH_BITS			=	0x8080808080808080L;
+
+	private final FileChannel		channel;
+	private final long				size;
+
+	private MappedByteBuffer		window;
+	private long					windowStart;
+	private int						windowLimit;
+
+	private byte[]					line				=	new byte[INITIAL_LINE_SIZE];
+	private long					offset;				// byte offset of the next line
+	private long					lineOffset;			// byte offset of the last line returned
+	private long					end					=	Long.MAX_VALUE;
+
+
+	public MappedDatasetReader(String path) throws IOException {
+		this.channel	=	FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+		this.size		=	channel.size();
+	}
+
+
+	@Override
+	public String readLine() throws IOException {
+		lineOffset = offset;
+		if (offset >= end || offset >= size)
+			return null;
+
+		long windowSize = WINDOW_SIZE;
+		while (true) {
+			if (window == null || offset < windowStart || offset >= windowStart + windowLimit)
+				map(offset, windowSize);
+
+			int start = (int) (offset - windowStart);
+			int position = indexOfNewline(start);
+
+			boolean found = position < windowLimit;
+			if (found || windowStart + windowLimit == size) {
+				int length = position - start;
+				offset = windowStart + position + (found ? 1 : 0);
+
+				if (length > 0 && window.get(start + length - 1) == '\r')
+					length--;
+				if (length > line.length)
+					line = new byte[Math.max(line.length * 2, length)];
+				window.get(start, line, 0, length);
+				return new String(line, 0, length, StandardCharsets.UTF_8);
+			}
+
+			// the line crosses the end of the window - remapping from the line start (a bigger window if the line alone fills it)
+			if (start == 0)
+				windowSize *= 2;
+			map(offset, windowSize);
+		}
+	}
+
+
+	// the position of the first '\n' at / after position, windowLimit when there is none
+	private int indexOfNewline(int position) {
+		// a byte of x is 0 where the word has a '\n', (x - LOW_BITS) & ~x sets the high bit of the lowest such byte
+		// (bytes above it may be flagged falsely, the lowest one never is - the window is little endian)
+		int wordsLimit = windowLimit - Long.BYTES;
+		while (position <= wordsLimit) {
+			long x = window.getLong(position) ^ NEWLINES;
+			long found = (x - LOW_BITS) & ~x & HIGH_BITS;
+			if (found != 0)
+				return position + (Long.numberOfTrailingZeros(found) >>> 3);
+			position += Long.BYTES;
+		}
+		while (position < windowLimit && window.get(position) != '\n')
+			position++;
+		return position;
+	}
+
+
+	private void map(long start, long windowSize) throws IOException {
+		long length = Math.min(Math.min(windowSize, Integer.MAX_VALUE), size - start);
+		window		=	channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+		window.order(ByteOrder.LITTLE_ENDIAN);
+		windowStart	=	start;
+		windowLimit	=	(int) length;
+	}
+
+
+	@Override
+	public void seek(long target) {
+		if (offset != 0 || window != null)
+			throw new IllegalStateException("seek is only supported before reading");
+		offset		=	Math.min(target, size);
+		lineOffset	=	offset;
+	}
+
+	@Override
+	public void setEnd(long end) {
+		this.end = end;
+	}
+
+	@Override
+	public long getLineOffset() {
+		return lineOffset;
+	}
+
+	@Override
+	public long getOffset() {
+		return offset;
+	}
+
+
+	@Override
+	public void close() throws IOException {
+		// the mapping itself is released by the GC
+		window = null;
+		channel.close();
+	}
+}
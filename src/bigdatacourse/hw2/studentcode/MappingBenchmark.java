@@ -0,0 +1,138 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.datastax.oss.driver.api.core.ProtocolVersion;
+import com.datastax.oss.driver.api.core.type.codec.TypeCodec;
+import com.datastax.oss.driver.api.core.type.codec.TypeCodecs;
+
+
+/*
+ * Compares the record mapping of the items file - the previous try/catch mapping (getString + fallback,
+ * category traversal until a JSONException) against the items TableMapping the loaders use now.
+ * Both serialize the values with the default codecs, the TableMapping through its Encoder (which needs no session).
+ * The lines are parsed once up front, so only the mapping itself is measured.
+ * usage: MappingBenchmark <meta_*.json file> [rounds] [max rows]
+ */
+public class MappingBenchmark {
+
+	private static final TypeCodec<Set<String>>	TEXT_SET	=	TypeCodecs.setOf(TypeCodecs.TEXT);
+
+
+	private interface Mapper {
+		int map(JSONObject json);
+	}
+
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("usage: MappingBenchmark <meta_*.json file> [rounds] [max rows]");
+			return;
+		}
+
+		int rounds		=	args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		int maxRows		=	args.length > 2 ? Integer.parseInt(args[2]) : 500_000;
+
+		List<JSONObject> rows = new ArrayList<>();
+		try (DatasetReader reader = new DatasetReader(args[0])) {
+			String line;
+			while ((line = reader.readLine()) != null && rows.size() < maxRows)
+				if (!line.isEmpty())
+					rows.add(new JSONObject(line));
+		}
+		System.out.println("rows: " + rows.size() + ", rounds: " + rounds);
+
+		TableMapping.Encoder encoder = HW2StudentAnswer.ITEMS_MAPPING.encoder();
+		Mapper tableMapping = json -> size(encoder.encode(json));
+
+		// a warm-up round for each
+		run("try/catch", MappingBenchmark::mapWithExceptions, rows, 1, false);
+		run("TableMapping", tableMapping, rows, 1, false);
+
+		run("try/catch", MappingBenchmark::mapWithExceptions, rows, rounds, true);
+		run("TableMapping", tableMapping, rows, rounds, true);
+	}
+
+
+	private static void run(String name, Mapper mapper, List<JSONObject> rows, int rounds, boolean print) {
+		long startNanos = System.nanoTime();
+		long check = 0;
+		for (int i = 0; i < rounds; i++)
+			for (JSONObject json : rows)
+				check += mapper.map(json);
+
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+		if (print)
+			System.out.println(String.format("%-14s %12.0f rows/s   (check %d)", name, rows.size() * rounds / seconds, check));
+	}
+
+
+	// the mapping the loaders used before
+	private static int mapWithExceptions(JSONObject json) {
+		String asin = json.getString("asin");
+		Set<String> categories = new HashSet<>();
+		String img;
+		String title;
+		String desc;
+
+		int catIn = 0;
+		while (true) {
+			try {
+				JSONArray cats = (JSONArray) ((JSONArray) json.get("categories")).get(catIn);
+				catIn++;
+				for (int i = 0 ; i < cats.length(); i++)
+					categories.add(cats.get(i).toString());
+			}
+			catch (JSONException e) {
+				break;
+			}
+		}
+
+		try {
+			img = json.getString("imUrl");
+		}
+		catch (Exception e) {
+			img = HW2StudentAnswer.NOT_AVAILABLE_VALUE;
+		}
+
+		try {
+			title = json.getString("title");
+		}
+		catch (Exception e) {
+			title = HW2StudentAnswer.NOT_AVAILABLE_VALUE;
+		}
+
+		try {
+			desc = json.getString("description");
+		}
+		catch (Exception e) {
+			desc = HW2StudentAnswer.NOT_AVAILABLE_VALUE;
+		}
+
+		// in the column order of the items table, as the loaders bound them
+		return size(new ByteBuffer[] {
+			TypeCodecs.TEXT.encode(asin, ProtocolVersion.DEFAULT),
+			TypeCodecs.TEXT.encode(title, ProtocolVersion.DEFAULT),
+			TypeCodecs.TEXT.encode(img, ProtocolVersion.DEFAULT),
+			TEXT_SET.encode(categories, ProtocolVersion.DEFAULT),
+			TypeCodecs.TEXT.encode(desc, ProtocolVersion.DEFAULT)
+		});
+	}
+
+
+	// the serialized size of the values, so the work can not be optimized away
+	private static int size(ByteBuffer[] values) {
+		int size = 0;
+		for (ByteBuffer value : values)
+			size += value == null ? 0 : value.remaining();
+		return size;
+	}
+}
@@ -0,0 +1,216 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.datastax.oss.driver.api.core.cql.BatchStatement;
+import com.datastax.oss.driver.api.core.cql.BatchableStatement;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.DefaultBatchType;
+import com.datastax.oss.driver.api.core.cql.Statement;
+import com.datastax.oss.driver.api.core.metadata.Node;
+import com.datastax.oss.driver.api.core.metadata.token.Token;
+
+
+/*
+ * Groups rows of the same partition into UNLOGGED batches before they are sent by the AsyncWriter.
+ * One batcher is used per table and rows are grouped by that table's partition key,
+ * so a batch never spans more than one partition (no coordinator fan-out, no batch log).
+ * A batch is sent when it reaches maxBatchSize rows / maxBatchBytes, or when it waited lingerMillis.
+ * The number of open partitions is bounded as well, the oldest is sent first when it is exceeded.
+ * With a TokenRouter, every batch carries its routing token and batches that leave together
+ * (linger / flush) are sent grouped by their primary replica. Without one they leave in file order.
+ */
+public class PartitionBatcher implements AutoCloseable {
+
+	// rows waiting for the same partition
+	private static class Pending {
+		final long							createdNanos	=	System.nanoTime();
+		final List<BatchableStatement<?>>	statements		=	new ArrayList<>();
+		final List<AsyncWriter.Callback>	callbacks		=	new ArrayList<>();
+		int									bytes;
+		Token								token;
+		Node								replica;
+		boolean								idempotent		=	true;	// a batch is idempotent if all its rows are
+	}
+
+
+	private final AsyncWriter						writer;
+	private final int								maxBatchSize;
+	private final int								maxBatchBytes;
+	private final int								maxPendingPartitions;
+	private final long								lingerNanos;
+	private final TokenRouter						router;		// null - file order
+
+	private final LinkedHashMap<String, Pending>	pending			=	new LinkedHashMap<>();
+	private final ScheduledExecutorService			lingerTimer;
+
+
+	public PartitionBatcher(AsyncWriter writer, int maxBatchSize, int maxBatchBytes, long lingerMillis, int maxPendingPartitions, TokenRouter router) {
+		this.writer					=	writer;
+		this.router					=	router;
+		this.maxBatchSize			=	maxBatchSize;
+		this.maxBatchBytes			=	maxBatchBytes;
+		this.maxPendingPartitions	=	maxPendingPartitions;
+		this.lingerNanos			=	TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+
+		this.lingerTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "partition-batcher-linger");
+			t.setDaemon(true);
+			return t;
+		});
+		long period = Math.max(1, lingerMillis / 2);
+		lingerTimer.scheduleWithFixedDelay(this::sendExpired, period, period, TimeUnit.MILLISECONDS);
+	}
+
+
+	// adds a row of the given partition, the callback is called once the batch holding it completed
+	public void add(String partitionKey, BoundStatement statement, AsyncWriter.Callback callback) throws InterruptedException {
+		List<Pending> ready = new ArrayList<>(2);
+
+		synchronized (this) {
+			Pending batch = pending.get(partitionKey);
+			int size = sizeOf(statement);
+
+			// the row does not fit, the current batch goes out first
+			if (batch != null && batch.bytes + size > maxBatchBytes) {
+				pending.remove(partitionKey);
+				ready.add(batch);
+				batch = null;
+			}
+
+			if (batch == null) {
+				batch = new Pending();
+				if (router != null) {
+					// all the rows of the batch share the partition, so the first one defines the token
+					batch.token = router.tokenOf(statement.getRoutingKey());
+					batch.replica = router.primaryReplica(batch.token);
+				}
+				pending.put(partitionKey, batch);
+			}
+			batch.statements.add(statement);
+			batch.callbacks.add(callback);
+			batch.bytes += size;
+			batch.idempotent &= Boolean.TRUE.equals(statement.isIdempotent());
+
+			if (batch.statements.size() >= maxBatchSize || batch.bytes >= maxBatchBytes) {
+				pending.remove(partitionKey);
+				ready.add(batch);
+			}
+			else if (pending.size() > maxPendingPartitions) {
+				Iterator<Pending> oldest = pending.values().iterator();
+				ready.add(oldest.next());
+				oldest.remove();
+			}
+		}
+
+		// sending outside the lock - the writer may block on backpressure
+		for (Pending batch : ready)
+			send(batch);
+	}
+
+
+	private void sendExpired() {
+		List<Pending> expired = new ArrayList<>();
+		long now = System.nanoTime();
+
+		synchronized (this) {
+			// insertion order == creation order, so we can stop at the first batch that is still young
+			Iterator<Pending> it = pending.values().iterator();
+			while (it.hasNext()) {
+				Pending batch = it.next();
+				if (now - batch.createdNanos < lingerNanos)
+					break;
+				expired.add(batch);
+				it.remove();
+			}
+		}
+
+		try {
+			sendAll(expired);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+	private void send(Pending batch) throws InterruptedException {
+		Statement<?> statement;
+		if (batch.statements.size() == 1)
+			statement = batch.statements.get(0);
+		else
+			statement = BatchStatement.builder(DefaultBatchType.UNLOGGED)
+					.addStatements(batch.statements)
+					.setIdempotence(batch.idempotent)
+					.build();
+		if (batch.token != null)
+			statement = statement.setRoutingToken(batch.token);
+
+		List<AsyncWriter.Callback> callbacks = batch.callbacks;
+		writer.write(statement, error -> {
+			for (AsyncWriter.Callback callback : callbacks)
+				if (callback != null)
+					callback.onComplete(error);
+		});
+	}
+
+
+	// approximated by the size of the bound values
+	private static int sizeOf(BoundStatement statement) {
+		int size = 0;
+		for (ByteBuffer value : statement.getValues())
+			if (value != null)
+				size += value.remaining();
+		return size;
+	}
+
+
+	// sends everything that is still pending
+	public void flush() throws InterruptedException {
+		List<Pending> all;
+		synchronized (this) {
+			all = new ArrayList<>(pending.values());
+			pending.clear();
+		}
+		sendAll(all);
+	}
+
+
+	// sends the batches one replica after the other, so each window of writes goes to the owning nodes
+	private void sendAll(List<Pending> batches) throws InterruptedException {
+		if (router == null) {
+			for (Pending batch : batches)
+				send(batch);
+			return;
+		}
+
+		Map<Node, List<Pending>> byReplica = new LinkedHashMap<>();
+		for (Pending batch : batches)
+			byReplica.computeIfAbsent(batch.replica, n -> new ArrayList<>()).add(batch);
+		for (List<Pending> group : byReplica.values())
+			for (Pending batch : group)
+				send(batch);
+	}
+
+
+	// an interrupt stops the wait (the batches not sent yet are dropped), the interrupt flag is kept for the caller
+	@Override
+	public void close() {
+		lingerTimer.shutdown();
+		try {
+			lingerTimer.awaitTermination(1, TimeUnit.MINUTES);
+			flush();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.util.concurrent.atomic.LongAdder;
+
+
+/*
+ * Utilization of a stage of a load - the share of its threads' time spent working, as opposed to waiting
+ * on the ring buffers around it. A stage near 100% is the bottleneck (give it more threads), a stage that
+ * is mostly idle waits for the one before it or is blocked by the one after it.
+ */
+public class PipelineStage {
+
+	private final String		name;
+	private final int			threads;
+	private final LongAdder		busyNanos		=	new LongAdder();
+	private final long			startNanos		=	System.nanoTime();
+
+	private long				lastNanos		=	startNanos;
+	private long				lastBusyNanos;
+
+
+	public PipelineStage(String name, int threads) {
+		this.name		=	name;
+		this.threads	=	threads;
+	}
+
+
+	// called by the stage's threads for every batch they processed
+	public void addBusy(long nanos) {
+		busyNanos.add(nanos);
+	}
+
+
+	// % busy since the previous call (the progress reporter is the only caller)
+	public synchronized double intervalUtilization() {
+		long now	=	System.nanoTime();
+		long busy	=	busyNanos.sum();
+		double utilization = utilization(busy - lastBusyNanos, now - lastNanos);
+		lastNanos		=	now;
+		lastBusyNanos	=	busy;
+		return utilization;
+	}
+
+
+	// % busy since the start of the load
+	public double totalUtilization() {
+		return utilization(busyNanos.sum(), System.nanoTime() - startNanos);
+	}
+
+
+	private double utilization(long busy, long elapsed) {
+		return elapsed <= 0 ? 0 : Math.min(100.0, 100.0 * busy / elapsed / threads);
+	}
+
+
+	public String getName() {
+		return name;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+}
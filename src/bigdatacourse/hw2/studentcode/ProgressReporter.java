@@ -0,0 +1,100 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+
+/*
+ * Prints the progress of a load every few seconds - rows/sec, MB/sec, in-flight writes, errors,
+ * p50/p99 write latency, the utilization of the load's stages and the ETA. Everything is read from lock-free counters (LongAdder / atomic
+ * histogram), so the loaders never touch System.out (and its lock) per row.
+ */
+public class ProgressReporter implements AutoCloseable {
+
+	private final String					name;
+	private final LongSupplier				rows;
+	private final LongSupplier				bytes;
+	private final long						totalBytes;		// <= 0 - unknown (e.g. compressed input), no ETA
+	private final AsyncWriter				writer;
+	private final AdaptiveLimiter			limiter;
+	private final Supplier<String>			details;		// the stages of the load, progress of its files
+
+	private final ScheduledExecutorService	timer;
+	private final long						startNanos		=	System.nanoTime();
+	private long							lastNanos		=	startNanos;
+	private long							lastRows;
+	private long							lastBytes;
+
+
+	public ProgressReporter(String name, LongSupplier rows, LongSupplier bytes, long totalBytes,
+							AsyncWriter writer, AdaptiveLimiter limiter, Supplier<String> details, long intervalSeconds) {
+		this.name		=	name;
+		this.rows		=	rows;
+		this.bytes		=	bytes;
+		this.totalBytes	=	totalBytes;
+		this.writer		=	writer;
+		this.limiter	=	limiter;
+		this.details	=	details;
+
+		this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "progress-reporter");
+			t.setDaemon(true);
+			return t;
+		});
+		timer.scheduleAtFixedRate(this::report, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+
+	private void report() {
+		long now			=	System.nanoTime();
+		long currentRows	=	rows.getAsLong();
+		long currentBytes	=	bytes.getAsLong();
+		double seconds		=	(now - lastNanos) / 1e9;
+		long[] latencies	=	writer.getLatencies().drain();
+
+		StringBuilder sb = new StringBuilder(160);
+		sb.append(name).append(" - rows: ").append(currentRows);
+		sb.append(String.format(" (%.0f/s), %.1f MB/s", (currentRows - lastRows) / seconds, (currentBytes - lastBytes) / seconds / (1 << 20)));
+		sb.append(", in-flight: ").append(writer.getInFlight()).append("/").append(limiter.getLimit());
+		sb.append(", errors: ").append(writer.getFailed());
+		sb.append(", retries: ").append(writer.getRetried());
+		sb.append(", latency p50: ").append(formatMicros(LatencyHistogram.percentile(latencies, 50)));
+		sb.append(" p99: ").append(formatMicros(LatencyHistogram.percentile(latencies, 99)));
+
+		if (totalBytes > 0 && currentBytes > 0) {
+			double elapsed = (now - startNanos) / 1e9;
+			long eta = (long) (elapsed * (totalBytes - currentBytes) / currentBytes);
+			sb.append(String.format(", ETA: %d:%02d:%02d (%.1f%%)", eta / 3600, (eta / 60) % 60, eta % 60, 100.0 * currentBytes / totalBytes));
+		}
+		sb.append(", ").append(details.get());
+
+		System.out.println(sb);
+
+		lastNanos	=	now;
+		lastRows	=	currentRows;
+		lastBytes	=	currentBytes;
+	}
+
+
+	private static String formatMicros(long micros) {
+		if (micros < 0)
+			return "-";
+		return String.format("%.1f ms", micros / 1000.0);
+	}
+
+
+	// an interrupt stops the wait for a report in progress, the interrupt flag is kept for the caller
+	@Override
+	public void close() {
+		timer.shutdown();
+		try {
+			timer.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+
+/*
+ * A bounded read-through cache - a miss loads the value (e.g. from the cluster) and keeps it for ttl.
+ * Keys that do not exist are cached too (negative caching), for their own (shorter) ttl, so a missing key
+ * can show up once it is loaded.
+ * The entries are split into segments by key hash, each an LRU (an access ordered LinkedHashMap) with its own lock,
+ * so concurrent readers of different keys rarely wait for each other. The loader runs outside the locks.
+ * Every segment holds up to maxEntries / segments entries, the least recently used one is evicted.
+ */
+public class ReadThroughCache<K, V> {
+
+	// loads the value of a key, null - the key does not exist
+	public interface Loader<K, V> {
+		V load(K key);
+	}
+
+
+	private static class Entry<V> {
+		final V			value;			// null - the key does not exist
+		final long		expiresNanos;
+
+		Entry(V value, long expiresNanos) {
+			this.value			=	value;
+			this.expiresNanos	=	expiresNanos;
+		}
+	}
+
+
+	private final Loader<K, V>						loader;
+	private final long								ttlNanos;
+	private final long								negativeTtlNanos;
+	private final List<Map<K, Entry<V>>>			segments;
+
+	private final LongAdder							hits			=	new LongAdder();
+	private final LongAdder							negativeHits	=	new LongAdder();
+	private final LongAdder							misses			=	new LongAdder();
+	private final LongAdder							evictions		=	new LongAdder();
+	private final LongAdder							expirations		=	new LongAdder();
+
+
+	// segments - rounded up to a power of 2
+	public ReadThroughCache(int maxEntries, long ttlMillis, long negativeTtlMillis, int segments, Loader<K, V> loader) {
+		this.loader				=	loader;
+		this.ttlNanos			=	TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+		this.negativeTtlNanos	=	TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis);
+
+		int count = Integer.highestOneBit(Math.max(1, Math.min(segments, maxEntries)) * 2 - 1);
+		int segmentEntries = Math.max(1, maxEntries / count);
+		this.segments = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			this.segments.add(new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+					if (size() <= segmentEntries)
+						return false;
+					evictions.increment();
+					return true;
+				}
+			});
+		}
+	}
+
+
+	public V get(K key) {
+		Entry<V> entry = lookup(key);
+		if (entry != null)
+			return entry.value;
+
+		// loaded outside the lock - a slow load never blocks the other keys of the segment
+		misses.increment();
+		V value = loader.load(key);
+		store(key, value);
+		return value;
+	}
+
+
+	// the same, a miss is loaded by asyncLoader (e.g. executeAsync) and cached once it completes
+	public CompletableFuture<V> getAsync(K key, Function<K, CompletableFuture<V>> asyncLoader) {
+		Entry<V> entry = lookup(key);
+		if (entry != null)
+			return CompletableFuture.completedFuture(entry.value);
+
+		misses.increment();
+		return asyncLoader.apply(key).thenApply(value -> {
+			store(key, value);
+			return value;
+		});
+	}
+
+
+	// the live entry of the key, null on a miss
+	private Entry<V> lookup(K key) {
+		Map<K, Entry<V>> segment = segmentOf(key);
+		long now = System.nanoTime();
+		synchronized (segment) {
+			Entry<V> entry = segment.get(key);
+			if (entry == null)
+				return null;
+			if (now - entry.expiresNanos < 0) {
+				(entry.value == null ? negativeHits : hits).increment();
+				return entry;
+			}
+			segment.remove(key);
+			expirations.increment();
+			return null;
+		}
+	}
+
+
+	private void store(K key, V value) {
+		Map<K, Entry<V>> segment = segmentOf(key);
+		long expiresNanos = System.nanoTime() + (value == null ? negativeTtlNanos : ttlNanos);
+		synchronized (segment) {
+			segment.put(key, new Entry<>(value, expiresNanos));
+		}
+	}
+
+
+	public void invalidate(K key) {
+		Map<K, Entry<V>> segment = segmentOf(key);
+		synchronized (segment) {
+			segment.remove(key);
+		}
+	}
+
+
+	// e.g. after a load changed the values
+	public void clear() {
+		for (Map<K, Entry<V>> segment : segments)
+			synchronized (segment) {
+				segment.clear();
+			}
+	}
+
+
+	public int size() {
+		int size = 0;
+		for (Map<K, Entry<V>> segment : segments)
+			synchronized (segment) {
+				size += segment.size();
+			}
+		return size;
+	}
+
+
+	private Map<K, Entry<V>> segmentOf(K key) {
+		int hash = key.hashCode();
+		return segments.get((hash ^ (hash >>> 16)) & (segments.size() - 1));
+	}
+
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getNegativeHits() {
+		return negativeHits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	public long getExpirations() {
+		return expirations.sum();
+	}
+
+
+	public String report() {
+		long lookups = getHits() + getNegativeHits() + getMisses();
+		return String.format("entries: %d, hits: %d, not exists hits: %d, misses: %d (%.1f%% hit rate), evictions: %d, expired: %d",
+								size(), getHits(), getNegativeHits(), getMisses(),
+								lookups == 0 ? 0.0 : 100.0 * (getHits() + getNegativeHits()) / lookups, getEvictions(), getExpirations());
+	}
+}
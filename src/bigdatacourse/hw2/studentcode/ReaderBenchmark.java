@@ -0,0 +1,108 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+import org.json.JSONObject;
+
+
+/*
+ * Compares the ways to read a dataset file - the original BufferedReader(FileReader) path,
+ * DatasetReader (read buffer) and MappedDatasetReader (memory mapping).
+ * usage: ReaderBenchmark <dataset file> [rounds] [parse]
+ * parse - also parse every line with JSONObject (otherwise only the lines are read)
+ */
+public class ReaderBenchmark {
+
+	private interface Reader {
+		long read(String path, boolean parse) throws IOException;
+	}
+
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("usage: ReaderBenchmark <dataset file> [rounds] [parse]");
+			return;
+		}
+
+		String path		=	args[0];
+		int rounds		=	args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		boolean parse	=	args.length > 2 && args[2].equals("parse");
+		long size		=	new File(path).length();
+
+		System.out.println("file: " + path + " (" + (size >> 20) + " MB), rounds: " + rounds + ", parse: " + parse);
+
+		// a warm-up round for each, so the JIT does not favor the last one
+		run("BufferedReader", ReaderBenchmark::readBuffered, path, parse, size, 1, false);
+		run("DatasetReader", (p, j) -> readLines(new DatasetReader(p), j), path, parse, size, 1, false);
+		run("MappedDatasetReader", (p, j) -> readLines(new MappedDatasetReader(p), j), path, parse, size, 1, false);
+
+		run("BufferedReader", ReaderBenchmark::readBuffered, path, parse, size, rounds, true);
+		run("DatasetReader", (p, j) -> readLines(new DatasetReader(p), j), path, parse, size, rounds, true);
+		run("MappedDatasetReader", (p, j) -> readLines(new MappedDatasetReader(p), j), path, parse, size, rounds, true);
+	}
+
+
+	private static void run(String name, Reader reader, String path, boolean parse, long size, int rounds, boolean print) throws IOException {
+		long gcCount	=	gcCount();
+		long gcMillis	=	gcMillis();
+		long startNanos	=	System.nanoTime();
+		long lines		=	0;
+
+		for (int i = 0; i < rounds; i++)
+			lines += reader.read(path, parse);
+
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+		if (print)
+			System.out.println(String.format("%-20s %8.1f MB/s %10.0f lines/s   gc: %d collections, %d ms",
+					name, size * rounds / seconds / (1 << 20), lines / seconds, gcCount() - gcCount, gcMillis() - gcMillis));
+	}
+
+
+	// the path the loaders used before DatasetReader
+	private static long readBuffered(String path, boolean parse) throws IOException {
+		long lines = 0;
+		try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (parse && !line.isEmpty())
+					new JSONObject(line);
+				lines++;
+			}
+		}
+		return lines;
+	}
+
+
+	private static long readLines(LineReader reader, boolean parse) throws IOException {
+		long lines = 0;
+		try (reader) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (parse && !line.isEmpty())
+					new JSONObject(line);
+				lines++;
+			}
+		}
+		return lines;
+	}
+
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			count += gc.getCollectionCount();
+		return count;
+	}
+
+	private static long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			millis += gc.getCollectionTime();
+		return millis;
+	}
+}
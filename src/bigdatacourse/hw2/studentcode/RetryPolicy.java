@@ -0,0 +1,86 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.datastax.oss.driver.api.core.AllNodesFailedException;
+import com.datastax.oss.driver.api.core.NoNodeAvailableException;
+import com.datastax.oss.driver.api.core.RequestThrottlingException;
+import com.datastax.oss.driver.api.core.connection.BusyConnectionException;
+import com.datastax.oss.driver.api.core.servererrors.BootstrappingException;
+import com.datastax.oss.driver.api.core.servererrors.OverloadedException;
+import com.datastax.oss.driver.api.core.servererrors.QueryValidationException;
+import com.datastax.oss.driver.api.core.servererrors.ReadTimeoutException;
+import com.datastax.oss.driver.api.core.servererrors.UnavailableException;
+import com.datastax.oss.driver.api.core.type.codec.CodecNotFoundException;
+
+
+/*
+ * Decides if (and when) a failed write is retried.
+ * Up to maxAttempts attempts, with exponential backoff and full jitter between them.
+ * Errors where the write surely did not happen are retried for every statement,
+ * errors with an unknown outcome (timeouts, server errors...) only for idempotent statements,
+ * and errors in the statement itself (invalid query, bad value...) are never retried.
+ */
+public class RetryPolicy {
+
+	private final int		maxAttempts;
+	private final long		baseDelayMillis;
+	private final long		maxDelayMillis;
+
+
+	public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+		this.maxAttempts		=	maxAttempts;
+		this.baseDelayMillis	=	baseDelayMillis;
+		this.maxDelayMillis		=	maxDelayMillis;
+	}
+
+
+	public boolean shouldRetry(Throwable error, boolean idempotent, int attempt) {
+		if (attempt >= maxAttempts)
+			return false;
+
+		error = WriteErrors.unwrap(error);
+
+		// the statement will fail the same way again
+		if (error instanceof QueryValidationException	||
+			error instanceof CodecNotFoundException		||
+			error instanceof IllegalArgumentException)
+			return false;
+
+		// the write was not applied
+		if (error instanceof OverloadedException		||
+			error instanceof UnavailableException		||
+			error instanceof BootstrappingException		||
+			error instanceof ReadTimeoutException		||
+			error instanceof RequestThrottlingException	||
+			error instanceof BusyConnectionException	||
+			error instanceof NoNodeAvailableException)
+			return true;
+
+		// each node failed on its own, retry if any of them may be retried
+		if (error instanceof AllNodesFailedException) {
+			for (List<Throwable> nodeErrors : ((AllNodesFailedException) error).getAllErrors().values())
+				for (Throwable nodeError : nodeErrors)
+					if (shouldRetry(nodeError, idempotent, attempt))
+						return true;
+			return false;
+		}
+
+		// unknown outcome (write timeout, server error, connection lost...) - only safe when the write is idempotent
+		return idempotent;
+	}
+
+
+	// exponential backoff with full jitter - a random delay in [0, min(max, base * 2^(attempt - 1))]
+	public long delayMillis(int attempt) {
+		long ceiling = baseDelayMillis << Math.min(attempt - 1, 20);
+		ceiling = Math.min(maxDelayMillis, ceiling);
+		return ThreadLocalRandom.current().nextLong(ceiling + 1);
+	}
+
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+}
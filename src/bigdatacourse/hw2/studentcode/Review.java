@@ -0,0 +1,35 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.time.Instant;
+
+import com.datastax.oss.driver.api.core.cql.Row;
+
+
+/*
+ * A review, as read from the review tables - immutable, so a page of reviews can be shared between threads
+ * (see SingleFlight).
+ */
+public class Review {
+	public final Instant		time;
+	public final String			asin;
+	public final String			reviewerID;
+	public final String			reviewerName;
+	public final float			rating;
+	public final String			summary;
+	public final String			reviewText;
+
+	public Review(Instant time, String asin, String reviewerID, String reviewerName, float rating, String summary, String reviewText) {
+		this.time			=	time;
+		this.asin			=	asin;
+		this.reviewerID		=	reviewerID;
+		this.reviewerName	=	reviewerName;
+		this.rating			=	rating;
+		this.summary		=	summary;
+		this.reviewText		=	reviewText;
+	}
+
+	// a row of USER_REVIEW_SELECT / ITEM_REVIEW_SELECT
+	public static Review of(Row row) {
+		return new Review(row.getInstant(0), row.getString(1), row.getString(2), row.getString(3), row.getFloat(4), row.getString(5), row.getString(6));
+	}
+}
@@ -0,0 +1,84 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.util.function.Supplier;
+
+
+/*
+ * Bounded hand-off between two stages of a load. All the slots are allocated up front and circulate -
+ * a producer claims a free slot, fills it and publishes it, a consumer takes the oldest published slot
+ * and releases it back once it is done with it. A slot is a whole batch of rows, so the lock is taken
+ * once per batch and not per row, and a full buffer blocks the producers (backpressure).
+ * take() returns null once every producer is done and everything published was taken.
+ */
+public class RingBuffer<T> {
+
+	private final Object[]		published;		// ring of the published slots, oldest at head
+	private final Object[]		free;			// stack of the free slots
+	private int					head;
+	private int					count;
+	private int					freeCount;
+	private int					producers;
+
+
+	public RingBuffer(int capacity, int producers, Supplier<T> slotFactory) {
+		this.published	=	new Object[capacity];
+		this.free		=	new Object[capacity];
+		this.producers	=	producers;
+		for (int i = 0; i < capacity; i++)
+			free[freeCount++] = slotFactory.get();
+	}
+
+
+	// blocks until a slot is free
+	@SuppressWarnings("unchecked")
+	public synchronized T claim() throws InterruptedException {
+		while (freeCount == 0)
+			wait();
+		T slot = (T) free[--freeCount];
+		free[freeCount] = null;
+		return slot;
+	}
+
+
+	// never blocks - a claimed slot always has room in the ring
+	public synchronized void publish(T slot) {
+		published[(head + count) % published.length] = slot;
+		count++;
+		notifyAll();
+	}
+
+
+	// blocks until a slot is published, null once all the producers are done and the ring is drained
+	@SuppressWarnings("unchecked")
+	public synchronized T take() throws InterruptedException {
+		while (count == 0) {
+			if (producers == 0)
+				return null;
+			wait();
+		}
+		T slot = (T) published[head];
+		published[head] = null;
+		head = (head + 1) % published.length;
+		count--;
+		return slot;
+	}
+
+
+	public synchronized void release(T slot) {
+		free[freeCount++] = slot;
+		notifyAll();
+	}
+
+
+	// called once by each producer when it will not publish anymore
+	public synchronized void producerDone() {
+		producers--;
+		notifyAll();
+	}
+
+
+	// published slots waiting for a consumer
+	public synchronized int size() {
+		return count;
+	}
+}
@@ -0,0 +1,167 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+
+/*
+ * Request coalescing (single flight) - concurrent calls with the same key share one execution: the first caller
+ * runs the query, the ones that arrive while it is in flight wait for it and get its result (or its exception).
+ * Nothing is kept once the call completes, so a later call queries again (caching is left to ReadThroughCache).
+ * Stats are kept per stats key (e.g. the asin, when the key also holds the page) - how many calls were coalesced
+ * into how many round trips. Only the first maxStatsKeys keys get their own stats, the totals count every call.
+ */
+public class SingleFlight<K, V> {
+
+	private static class KeyStats {
+		final String		key;
+		final LongAdder		calls			=	new LongAdder();
+		final LongAdder		executions		=	new LongAdder();
+
+		KeyStats(String key) {
+			this.key	=	key;
+		}
+	}
+
+
+	private final String								name;
+	private final int									maxStatsKeys;
+	private final Map<K, CompletableFuture<V>>			inFlight		=	new ConcurrentHashMap<>();
+	private final Map<String, KeyStats>					stats			=	new ConcurrentHashMap<>();
+	private final LongAdder								calls			=	new LongAdder();
+	private final LongAdder								executions		=	new LongAdder();
+
+
+	public SingleFlight(String name, int maxStatsKeys) {
+		this.name			=	name;
+		this.maxStatsKeys	=	maxStatsKeys;
+	}
+
+
+	public V execute(K key, String statsKey, Supplier<V> call) {
+		KeyStats keyStats = statsOf(statsKey);
+		calls.increment();
+		if (keyStats != null)
+			keyStats.calls.increment();
+
+		CompletableFuture<V> mine = new CompletableFuture<>();
+		CompletableFuture<V> running = inFlight.putIfAbsent(key, mine);
+		if (running != null)
+			return join(running);
+
+		executions.increment();
+		if (keyStats != null)
+			keyStats.executions.increment();
+		try {
+			V value = call.get();
+			mine.complete(value);
+			return value;
+		}
+		catch (RuntimeException | Error e) {
+			mine.completeExceptionally(e);
+			throw e;
+		}
+		finally {
+			// removed before a new call can join it (the waiters already hold the future)
+			inFlight.remove(key, mine);
+		}
+	}
+
+
+	// the same for an asynchronous call (e.g. executeAsync) - the callers share its future
+	public CompletableFuture<V> executeAsync(K key, String statsKey, Supplier<CompletableFuture<V>> call) {
+		KeyStats keyStats = statsOf(statsKey);
+		calls.increment();
+		if (keyStats != null)
+			keyStats.calls.increment();
+
+		CompletableFuture<V> mine = new CompletableFuture<>();
+		CompletableFuture<V> running = inFlight.putIfAbsent(key, mine);
+		if (running != null)
+			return running;
+
+		executions.increment();
+		if (keyStats != null)
+			keyStats.executions.increment();
+		CompletableFuture<V> result;
+		try {
+			result = call.get();
+		}
+		catch (RuntimeException | Error e) {
+			result = CompletableFuture.failedFuture(e);
+		}
+		result.whenComplete((value, error) -> {
+			inFlight.remove(key, mine);
+			if (error != null)
+				mine.completeExceptionally(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+			else
+				mine.complete(value);
+		});
+		return mine;
+	}
+
+
+	private KeyStats statsOf(String statsKey) {
+		KeyStats keyStats = stats.get(statsKey);
+		if (keyStats == null && stats.size() < maxStatsKeys)
+			keyStats = stats.computeIfAbsent(statsKey, KeyStats::new);
+		return keyStats;
+	}
+
+
+	// the waiters get the exception of the shared call as is
+	private static <V> V join(CompletableFuture<V> running) {
+		try {
+			return running.join();
+		}
+		catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			if (e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+			throw e;
+		}
+	}
+
+
+	public long getCalls() {
+		return calls.sum();
+	}
+
+	public long getExecutions() {
+		return executions.sum();
+	}
+
+	// calls per round trip, 1 - nothing was coalesced
+	public double getCoalescingRatio() {
+		long executions = getExecutions();
+		return executions == 0 ? 1 : (double) getCalls() / executions;
+	}
+
+
+	// the totals, and the keys that were coalesced the most
+	public String report(int topKeys) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%s - calls: %d, round trips: %d, coalesced: %d (%.2f calls per round trip)",
+								name, getCalls(), getExecutions(), getCalls() - getExecutions(), getCoalescingRatio()));
+
+		List<KeyStats> keys = new ArrayList<>(stats.values());
+		keys.sort(Comparator.comparingLong((KeyStats key) -> key.calls.sum() - key.executions.sum()).reversed());
+		for (KeyStats key : keys.subList(0, Math.min(topKeys, keys.size()))) {
+			long keyCalls = key.calls.sum();
+			long keyExecutions = key.executions.sum();
+			if (keyCalls == keyExecutions)
+				break;
+			sb.append(String.format("%n  %s - calls: %d, round trips: %d (%.2f calls per round trip)",
+									key.key, keyCalls, keyExecutions, (double) keyCalls / Math.max(1, keyExecutions)));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,246 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+
+/*
+ * The binary staging format of a table - the rows of a dataset file mapped to the table and serialized
+ * (CQL protocol bytes of every column, see TableMapping.Encoder), so loading it needs no JSON parsing and no conversion.
+ *   header - magic, version, table, columns (name + CQL type)
+ *   blocks - up to BLOCK_ROWS rows each, stored column by column:
+ *            int block bytes (not counting itself, 0 - end of the file), int rows,
+ *            the partition key column, then every column - each an int chunk length and the length-prefixed
+ *            values of the rows (-1 - null)
+ * The rows of a prepared file are sorted by partition key (see StagePreparer), so the rows of a partition are
+ * adjacent and their batches fill up one after the other.
+ */
+public class StageFile {
+
+	public static final String		SUFFIX			=	".stage";
+	private static final int		MAGIC			=	0x48573253;		// "HW2S"
+	private static final int		VERSION			=	1;
+	private static final int		BLOCK_ROWS		=	1024;
+
+
+	// the staging file of a table, for a dataset file
+	public static String pathFor(String pathSourceFile, String table) {
+		return pathSourceFile + "." + table + SUFFIX;
+	}
+
+
+	// writes rows in blocks, in the order they are added
+	public static class Writer implements Closeable {
+		private final DataOutputStream		out;
+		private final int					columns;
+		private final String[]				keys		=	new String[BLOCK_ROWS];
+		private final ByteBuffer[][]		values		=	new ByteBuffer[BLOCK_ROWS][];
+		private int							rows;
+		private long						written;
+
+		public Writer(String path, String table, String[] columnNames, String[] cqlTypes) throws IOException {
+			this.out		=	new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16));
+			this.columns	=	columnNames.length;
+
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(table);
+			out.writeInt(columns);
+			for (int i = 0; i < columns; i++) {
+				out.writeUTF(columnNames[i]);
+				out.writeUTF(cqlTypes[i]);
+			}
+		}
+
+		public void add(String partitionKey, ByteBuffer[] row) throws IOException {
+			keys[rows]		=	partitionKey;
+			values[rows]	=	row;
+			if (++rows == BLOCK_ROWS)
+				writeBlock();
+		}
+
+		private void writeBlock() throws IOException {
+			byte[][] keyBytes = new byte[rows][];
+			int[] chunkBytes = new int[columns];
+			int keyChunkBytes = 0;
+			for (int r = 0; r < rows; r++) {
+				keyBytes[r] = keys[r].getBytes(StandardCharsets.UTF_8);
+				keyChunkBytes += 4 + keyBytes[r].length;
+				for (int c = 0; c < columns; c++)
+					chunkBytes[c] += 4 + (values[r][c] == null ? 0 : values[r][c].remaining());
+			}
+			int blockBytes = 4 + 4 + keyChunkBytes;
+			for (int c = 0; c < columns; c++)
+				blockBytes += 4 + chunkBytes[c];
+
+			out.writeInt(blockBytes);
+			out.writeInt(rows);
+			out.writeInt(keyChunkBytes);
+			for (int r = 0; r < rows; r++) {
+				out.writeInt(keyBytes[r].length);
+				out.write(keyBytes[r]);
+			}
+			for (int c = 0; c < columns; c++) {
+				out.writeInt(chunkBytes[c]);
+				for (int r = 0; r < rows; r++) {
+					ByteBuffer value = values[r][c];
+					if (value == null) {
+						out.writeInt(-1);
+						continue;
+					}
+					out.writeInt(value.remaining());
+					if (value.hasArray())
+						out.write(value.array(), value.arrayOffset() + value.position(), value.remaining());
+					else {
+						byte[] bytes = new byte[value.remaining()];
+						value.duplicate().get(bytes);
+						out.write(bytes);
+					}
+				}
+			}
+
+			written += rows;
+			for (int r = 0; r < rows; r++) {
+				keys[r]		=	null;
+				values[r]	=	null;
+			}
+			rows = 0;
+		}
+
+		public long getWritten() {
+			return written + rows;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (rows > 0)
+				writeBlock();
+			out.writeInt(0);
+			out.close();
+		}
+	}
+
+
+	// reads the rows back, a block at a time. the values of a row are slices of its block, never reused
+	public static class Reader implements Closeable {
+		private final DataInputStream		in;
+		private final String				path;
+		private final String				table;
+		private final String[]				columns;
+		private final String[]				cqlTypes;
+
+		private ByteBuffer					block;
+		private int							rows;
+		private int							row			=	-1;
+		private int[]						offsets;	// [column][row] -> start of the value in the block, key column first
+		private int[]						lengths;
+		private long						blockBytesRead;
+
+		public Reader(String path) throws IOException {
+			this.path	=	path;
+			this.in		=	new DataInputStream(new BufferedInputStream(new FileInputStream(path), 1 << 16));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				in.close();
+				throw new IOException(path + " is not a staging file (or was written by another version)");
+			}
+			this.table		=	in.readUTF();
+			int count		=	in.readInt();
+			this.columns	=	new String[count];
+			this.cqlTypes	=	new String[count];
+			for (int i = 0; i < count; i++) {
+				columns[i]	=	in.readUTF();
+				cqlTypes[i]	=	in.readUTF();
+			}
+		}
+
+		// moves to the next row, false at the end of the file
+		public boolean next() throws IOException {
+			if (++row < rows)
+				return true;
+			return readBlock();
+		}
+
+		private boolean readBlock() throws IOException {
+			int blockBytes;
+			try {
+				blockBytes = in.readInt();
+			}
+			catch (EOFException e) {
+				throw new IOException(path + " is truncated");
+			}
+			if (blockBytes == 0)
+				return false;
+
+			byte[] data = new byte[blockBytes];
+			in.readFully(data);
+			blockBytesRead += 4 + blockBytes;
+			block = ByteBuffer.wrap(data);
+			rows = block.getInt();
+			row = 0;
+
+			int chunks = columns.length + 1;
+			if (offsets == null || offsets.length < chunks * rows) {
+				offsets = new int[chunks * rows];
+				lengths = new int[chunks * rows];
+			}
+			for (int c = 0; c < chunks; c++) {
+				int chunkBytes = block.getInt();
+				int position = block.position();
+				for (int r = 0; r < rows; r++) {
+					int length = block.getInt();
+					offsets[c * rows + r] = block.position();
+					lengths[c * rows + r] = length;
+					if (length > 0)
+						block.position(block.position() + length);
+				}
+				block.position(position + chunkBytes);
+			}
+			return rows > 0 || readBlock();
+		}
+
+		public String partitionKey() {
+			return new String(block.array(), offsets[row], lengths[row], StandardCharsets.UTF_8);
+		}
+
+		// the serialized values of the current row, in the order of getColumns()
+		public ByteBuffer[] values() {
+			ByteBuffer[] values = new ByteBuffer[columns.length];
+			for (int c = 0; c < columns.length; c++) {
+				int i = (c + 1) * rows + row;
+				values[c] = lengths[i] < 0 ? null : ByteBuffer.wrap(block.array(), offsets[i], lengths[i]).slice();
+			}
+			return values;
+		}
+
+		public String getTable() {
+			return table;
+		}
+
+		public String[] getColumns() {
+			return columns;
+		}
+
+		public String[] getCqlTypes() {
+			return cqlTypes;
+		}
+
+		// bytes of the blocks read so far
+		public long getBytesRead() {
+			return blockBytesRead;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+
+/*
+ * The prepare step - converts a dataset file, once, into a staging file (see StageFile) for each of its tables,
+ * with the rows sorted by partition key. The file is parsed a single time for all the tables.
+ * The sort is external - every runRows rows of a table are sorted in memory and written to a run file,
+ * the runs are then merged into the staging file (a k-way merge), so the heap never holds more than a run per table.
+ * The sort is stable, so the rows of a partition keep their file order.
+ */
+public class StagePreparer {
+
+	private static class StagedRow {
+		final String		key;
+		final ByteBuffer[]	values;
+
+		StagedRow(String key, ByteBuffer[] values) {
+			this.key	=	key;
+			this.values	=	values;
+		}
+	}
+
+
+	// the rows of a table not written to a run yet, and its runs
+	private static class TableStage {
+		final TableMapping.Encoder		encoder;
+		final String					path;
+		final List<StagedRow>			buffer		=	new ArrayList<>();
+		final List<String>				runs		=	new ArrayList<>();
+		long							rows;
+
+		TableStage(TableMapping.Encoder encoder, String path) {
+			this.encoder	=	encoder;
+			this.path		=	path;
+		}
+	}
+
+
+	// a run being merged, with its current row
+	private static class RunCursor {
+		final StageFile.Reader	reader;
+		final int				run;
+		String					key;
+
+		RunCursor(StageFile.Reader reader, int run) {
+			this.reader	=	reader;
+			this.run	=	run;
+		}
+
+		boolean next() throws IOException {
+			if (!reader.next())
+				return false;
+			key = reader.partitionKey();
+			return true;
+		}
+	}
+
+
+	private static final Comparator<StagedRow>	BY_KEY		=	Comparator.comparing(row -> row.key);
+
+
+	// returns the staging files written, one per encoder
+	public static List<String> prepare(String path, List<TableMapping.Encoder> encoders, int runRows) throws IOException {
+		List<TableStage> tables = new ArrayList<>();
+		for (TableMapping.Encoder encoder : encoders)
+			tables.add(new TableStage(encoder, StageFile.pathFor(path, encoder.getTable())));
+
+		long rows = 0;
+		long skipped = 0;
+		try (LineReader reader = LineReader.open(path, false)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty())
+					continue;
+				rows++;
+
+				// all the tables of the row, or none of them
+				ByteBuffer[][] values = new ByteBuffer[tables.size()][];
+				String[] keys = new String[tables.size()];
+				try {
+					JSONObject json = new JSONObject(line);
+					for (int i = 0; i < tables.size(); i++) {
+						TableMapping.Encoder encoder = tables.get(i).encoder;
+						values[i]	=	encoder.encode(json);
+						keys[i]		=	encoder.partitionKey(json);
+					}
+				}
+				catch (JSONException e) {
+					System.out.println("ERROR - skipping row at byte " + reader.getLineOffset() + ": " + e.getMessage());
+					skipped++;
+					continue;
+				}
+
+				for (int i = 0; i < tables.size(); i++) {
+					TableStage table = tables.get(i);
+					table.buffer.add(new StagedRow(keys[i] == null ? "" : keys[i], values[i]));
+					if (table.buffer.size() >= runRows)
+						writeRun(table);
+				}
+			}
+		}
+
+		List<String> written = new ArrayList<>();
+		for (TableStage table : tables) {
+			if (table.runs.isEmpty())
+				writeSorted(table, table.path);
+			else {
+				if (!table.buffer.isEmpty())
+					writeRun(table);
+				merge(table);
+			}
+			written.add(table.path);
+			System.out.println("prepared " + table.path + " - rows: " + table.rows);
+		}
+		System.out.println("prepared " + path + " - rows: " + rows + ", skipped: " + skipped);
+		return written;
+	}
+
+
+	private static void writeRun(TableStage table) throws IOException {
+		String runPath = table.path + ".run" + table.runs.size();
+		writeSorted(table, runPath);
+		table.runs.add(runPath);
+	}
+
+
+	private static void writeSorted(TableStage table, String path) throws IOException {
+		table.buffer.sort(BY_KEY);
+		try (StageFile.Writer writer = new StageFile.Writer(path, table.encoder.getTable(), table.encoder.getColumns(), table.encoder.getCqlTypes())) {
+			for (StagedRow row : table.buffer)
+				writer.add(row.key, row.values);
+			if (path.equals(table.path))
+				table.rows = writer.getWritten();
+		}
+		table.buffer.clear();
+	}
+
+
+	private static void merge(TableStage table) throws IOException {
+		// equal keys are taken from the earlier run first, so the merge stays stable
+		PriorityQueue<RunCursor> heads = new PriorityQueue<>(Comparator.comparing((RunCursor cursor) -> cursor.key).thenComparingInt(cursor -> cursor.run));
+		List<RunCursor> cursors = new ArrayList<>();
+		try (StageFile.Writer writer = new StageFile.Writer(table.path, table.encoder.getTable(), table.encoder.getColumns(), table.encoder.getCqlTypes())) {
+			for (int i = 0; i < table.runs.size(); i++) {
+				RunCursor cursor = new RunCursor(new StageFile.Reader(table.runs.get(i)), i);
+				cursors.add(cursor);
+				if (cursor.next())
+					heads.add(cursor);
+			}
+
+			while (!heads.isEmpty()) {
+				RunCursor cursor = heads.poll();
+				writer.add(cursor.key, cursor.reader.values());
+				if (cursor.next())
+					heads.add(cursor);
+			}
+			table.rows = writer.getWritten();
+		}
+		finally {
+			for (RunCursor cursor : cursors)
+				cursor.reader.close();
+			for (String run : table.runs)
+				new File(run).delete();
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+
+
+/*
+ * Loads prepared staging files (see StagePreparer) - no JSON parsing and no conversion, the serialized values of
+ * every row are bound to the insert of its table as is (TableMapping.Binder.bindSerialized).
+ * Every file is streamed by its own thread into the same bounded async writer, the rows leave in partition key order.
+ * The staging files are the output of a finished prepare, so a staged load keeps no checkpoint and no
+ * dead-letter file - the failed writes are counted and printed, loading the files again is idempotent.
+ */
+public class StagedLoad {
+
+	// sends a bound row - batched or written on its own, by the caller
+	public interface Sender {
+		void send(TableMapping.Binder binder, String partitionKey, BoundStatement statement, AsyncWriter.Callback callback) throws InterruptedException;
+	}
+
+
+	private final String						name;
+	private final List<String>					paths;
+	private final Map<String, TableMapping.Binder>	binders;
+	private final AdaptiveLimiter				limiter;
+	private final TokenRouter					router;
+	private final AsyncWriter					writer;
+	private final long							progressSeconds;
+	private final long							totalBytes;
+
+	private final LongAdder						rows			=	new LongAdder();
+	private final LongAdder						bytes			=	new LongAdder();
+	private final LongAdder						failedWrites	=	new LongAdder();
+	private final AtomicInteger					filesDone		=	new AtomicInteger();
+	private ProgressReporter					progress;
+
+
+	// binders - the compiled mappings, by table
+	public StagedLoad(CqlSession session, String name, List<String> paths, Map<String, TableMapping.Binder> binders,
+						AdaptiveLimiter limiter, RetryPolicy retryPolicy, ExecutorService writeExecutor, long progressSeconds) {
+		this.name				=	name;
+		this.paths				=	paths;
+		this.binders			=	binders;
+		this.limiter			=	limiter;
+		this.router				=	new TokenRouter(session);
+		this.writer				=	new AsyncWriter(session, limiter, retryPolicy, router, writeExecutor);
+		this.progressSeconds	=	progressSeconds;
+
+		long total = 0;
+		for (String path : paths)
+			total += new File(path).length();
+		this.totalBytes	=	total;
+	}
+
+
+	public void load(Sender sender) throws Exception {
+		progress = new ProgressReporter(name, rows::sum, bytes::sum, totalBytes, writer, limiter,
+										() -> "files done: " + filesDone.get() + "/" + paths.size(), progressSeconds);
+
+		// the first error stops the other files too
+		AtomicReference<Exception> error = new AtomicReference<>();
+		List<Thread> threads = new ArrayList<>();
+		for (String path : paths) {
+			Thread thread = new Thread(() -> {
+				try {
+					loadFile(path, sender);
+					filesDone.incrementAndGet();
+				}
+				catch (InterruptedException e) {
+					// stopped by the error of another file
+				}
+				catch (Exception e) {
+					if (error.compareAndSet(null, e))
+						for (Thread other : threads)
+							other.interrupt();
+				}
+			}, "staged-" + new File(path).getName());
+			threads.add(thread);
+		}
+		for (Thread thread : threads)
+			thread.start();
+		for (Thread thread : threads)
+			thread.join();
+
+		if (error.get() != null)
+			throw error.get();
+	}
+
+
+	private void loadFile(String path, Sender sender) throws IOException, InterruptedException {
+		try (StageFile.Reader reader = new StageFile.Reader(path)) {
+			TableMapping.Binder binder = binders.get(reader.getTable());
+			if (binder == null)
+				throw new IOException(path + " stages the unknown table " + reader.getTable());
+			int[] indices = binder.indicesOf(reader.getColumns(), reader.getCqlTypes());
+
+			long bytesRead = 0;
+			while (reader.next()) {
+				if (Thread.interrupted())
+					throw new InterruptedException();
+
+				String partitionKey = reader.partitionKey();
+				ByteBuffer[] values = reader.values();
+				sender.send(binder, partitionKey, binder.bindSerialized(indices, values), failure -> {
+					if (failure != null) {
+						failedWrites.increment();
+						System.out.println("ERROR - write to " + binder.getTable() + " failed for partition " + partitionKey + ": " + failure);
+					}
+				});
+
+				rows.increment();
+				bytes.add(reader.getBytesRead() - bytesRead);
+				bytesRead = reader.getBytesRead();
+			}
+		}
+	}
+
+
+	public void close() throws Exception {
+		writer.close();
+		if (progress != null)
+			progress.close();
+
+		System.out.println(name + " - rows: " + rows.sum() + ", files: " + filesDone.get() + "/" + paths.size() +
+							", written: " + writer.getSucceeded() + ", failed: " + writer.getFailed() + ", retries: " + writer.getRetried());
+		System.out.println(router.report());
+		System.out.println("in-flight limit: " + limiter.getLimit() + " (lowered " + limiter.getDecreases() + " times, senders waited "
+							+ TimeUnit.NANOSECONDS.toMillis(limiter.getBlockedNanos()) + " ms for a slot)");
+		if (failedWrites.sum() > 0)
+			System.out.println(failedWrites.sum() + " rows failed to write (load the staging files again to retry them)");
+	}
+
+
+	public AsyncWriter getWriter() {
+		return writer;
+	}
+
+	public TokenRouter getRouter() {
+		return router;
+	}
+}
@@ -0,0 +1,336 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.datastax.oss.driver.api.core.ProtocolVersion;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.BoundStatementBuilder;
+import com.datastax.oss.driver.api.core.cql.ColumnDefinitions;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.type.codec.TypeCodec;
+import com.datastax.oss.driver.api.core.type.codec.registry.CodecRegistry;
+import com.datastax.oss.driver.api.core.type.reflect.GenericType;
+
+
+/*
+ * Declares how a line of a dataset file is mapped to a row of a table - for every column its source JSON path
+ * (dotted for nested objects), its java type, a converter and a default (a column without a default is required,
+ * a record missing it fails). The table's partition key path is declared as well, for the batching of the loaders.
+ * compile() resolves everything once against the prepared insert - the column index, the split path and the codec -
+ * so binding a row is only the JSON lookups and the codec calls, with no reflection or name / codec lookups.
+ * encoder() serializes the records offline instead, for the staging files (see StageFile).
+ */
+public class TableMapping {
+
+	// converts the JSON value found at the column's path (never null) to the column's java value
+	public interface Converter<T> {
+		T convert(Object value);
+	}
+
+
+	// built-in converters
+	public static final Converter<String>		TEXT				=	value -> value.toString();
+	public static final Converter<Float>		REAL				=	value -> (value instanceof Number) ? ((Number) value).floatValue() : Float.parseFloat(value.toString());
+	public static final Converter<Instant>		EPOCH_SECONDS		=	value -> Instant.ofEpochSecond((value instanceof Number) ? ((Number) value).longValue() : Long.parseLong(value.toString()));
+	public static final Converter<Set<String>>	FLATTENED_TEXT_SET	=	TableMapping::flattenTextSet;
+
+
+	private static class Column<T> {
+		final String			name;
+		final String[]			path;
+		final GenericType<T>	javaType;
+		final Converter<T>		converter;
+		final T					defaultValue;		// null - required
+
+		Column(String name, String path, GenericType<T> javaType, Converter<T> converter, T defaultValue) {
+			this.name			=	name;
+			this.path			=	path.split("\\.");
+			this.javaType		=	javaType;
+			this.converter		=	converter;
+			this.defaultValue	=	defaultValue;
+		}
+
+		// the column's value in the record
+		T value(JSONObject json) {
+			Object value = lookup(json, path);
+			if (value != null)
+				return converter.convert(value);
+			if (defaultValue != null)
+				return defaultValue;
+			throw new JSONException("missing required field " + String.join(".", path));
+		}
+	}
+
+
+	private final String				table;
+	private final List<Column<?>>		columns				=	new ArrayList<>();
+	private String[]					partitionKeyPath;
+	private boolean						batched;
+
+
+	public TableMapping(String table) {
+		this.table = table;
+	}
+
+
+	// a column of any type
+	public <T> TableMapping column(String name, String path, GenericType<T> javaType, Converter<T> converter, T defaultValue) {
+		columns.add(new Column<>(name, path, javaType, converter, defaultValue));
+		return this;
+	}
+
+	// a required text column
+	public TableMapping text(String name, String path) {
+		return column(name, path, GenericType.STRING, TEXT, null);
+	}
+
+	// an optional text column
+	public TableMapping text(String name, String path, String defaultValue) {
+		return column(name, path, GenericType.STRING, TEXT, defaultValue);
+	}
+
+	// a required float column
+	public TableMapping real(String name, String path) {
+		return column(name, path, GenericType.FLOAT, REAL, null);
+	}
+
+	// a required timestamp column, from unix time in seconds
+	public TableMapping epochSeconds(String name, String path) {
+		return column(name, path, GenericType.INSTANT, EPOCH_SECONDS, null);
+	}
+
+	// a set<text> column from an array of arrays (flattened), empty when missing
+	public TableMapping flattenedTextSet(String name, String path) {
+		return column(name, path, GenericType.setOf(String.class), FLATTENED_TEXT_SET, Set.of());
+	}
+
+	// the path of the value that is the table's partition key
+	public TableMapping partitionKey(String path) {
+		this.partitionKeyPath = path.split("\\.");
+		return this;
+	}
+
+	// rows of the same partition are grouped into batches by the loaders
+	public TableMapping batched() {
+		this.batched = true;
+		return this;
+	}
+
+
+	public String getTable() {
+		return table;
+	}
+
+
+	// resolves the mapping against the prepared insert of the table
+	public Binder compile(PreparedStatement statement, CodecRegistry registry) {
+		ColumnDefinitions variables = statement.getVariableDefinitions();
+		List<BoundColumn<?>> bound = new ArrayList<>(columns.size());
+
+		for (Column<?> column : columns)
+			bound.add(resolve(column, variables, registry));
+
+		return new Binder(statement, bound.toArray(new BoundColumn<?>[0]));
+	}
+
+
+	private static <T> BoundColumn<T> resolve(Column<T> column, ColumnDefinitions variables, CodecRegistry registry) {
+		int index = variables.firstIndexOf(column.name);
+		if (index < 0)
+			throw new IllegalArgumentException("column " + column.name + " is not a variable of the statement");
+		TypeCodec<T> codec = registry.codecFor(variables.get(index).getType(), column.javaType);
+		return new BoundColumn<>(column, index, codec);
+	}
+
+
+	// a column resolved against the prepared statement
+	private static class BoundColumn<T> {
+		final Column<T>		column;
+		final int			index;
+		final TypeCodec<T>	codec;
+
+		BoundColumn(Column<T> column, int index, TypeCodec<T> codec) {
+			this.column	=	column;
+			this.index	=	index;
+			this.codec	=	codec;
+		}
+
+		void bind(BoundStatementBuilder builder, JSONObject json) {
+			builder.set(index, column.value(json), codec);
+		}
+	}
+
+
+	// the compiled mapping - binds the insert of a table from a record
+	public class Binder {
+		private final PreparedStatement		statement;
+		private final BoundColumn<?>[]		columns;
+
+		private Binder(PreparedStatement statement, BoundColumn<?>[] columns) {
+			this.statement	=	statement;
+			this.columns	=	columns;
+		}
+
+		// throws JSONException when a required field is missing / can not be converted
+		public BoundStatement bind(JSONObject json) {
+			BoundStatementBuilder builder = statement.boundStatementBuilder();
+			try {
+				for (BoundColumn<?> column : columns)
+					column.bind(builder, json);
+			}
+			catch (RuntimeException e) {
+				if (e instanceof JSONException)
+					throw e;
+				throw new JSONException("can not map the record to " + table + ": " + e);
+			}
+			// plain inserts - safe to retry
+			return builder.setIdempotence(true).build();
+		}
+
+		// the partition key of the row, null when the mapping has none
+		public String partitionKey(JSONObject json) {
+			return TableMapping.this.partitionKey(json);
+		}
+
+		// the variable index of each of the columns (of a staging file), checking they have the statement's types
+		public int[] indicesOf(String[] columns, String[] cqlTypes) {
+			ColumnDefinitions variables = statement.getVariableDefinitions();
+			int[] indices = new int[columns.length];
+			for (int i = 0; i < columns.length; i++) {
+				indices[i] = variables.firstIndexOf(columns[i]);
+				if (indices[i] < 0)
+					throw new IllegalArgumentException("column " + columns[i] + " is not a variable of the insert into " + table);
+				String type = variables.get(indices[i]).getType().asCql(false, true);
+				if (!type.equals(cqlTypes[i]))
+					throw new IllegalArgumentException("column " + columns[i] + " of " + table + " is " + type + ", not " + cqlTypes[i]);
+			}
+			return indices;
+		}
+
+		// binds values that are already serialized (by an Encoder) - no conversion at all
+		public BoundStatement bindSerialized(int[] indices, ByteBuffer[] values) {
+			BoundStatementBuilder builder = statement.boundStatementBuilder();
+			for (int i = 0; i < indices.length; i++)
+				builder.setBytesUnsafe(indices[i], values[i]);
+			return builder.setIdempotence(true).build();
+		}
+
+		public String getTable() {
+			return table;
+		}
+
+		public boolean isBatched() {
+			return batched;
+		}
+	}
+
+
+	// serializes records offline (no session) with the default codecs of the columns' java types,
+	// for the staging files that are loaded later with Binder.bindSerialized
+	public class Encoder {
+		private final TypeCodec<?>[]	codecs		=	new TypeCodec<?>[columns.size()];
+
+		private Encoder() {
+			for (int i = 0; i < codecs.length; i++)
+				codecs[i] = CodecRegistry.DEFAULT.codecFor(columns.get(i).javaType);
+		}
+
+		// throws JSONException when a required field is missing / can not be converted
+		public ByteBuffer[] encode(JSONObject json) {
+			ByteBuffer[] values = new ByteBuffer[codecs.length];
+			try {
+				for (int i = 0; i < codecs.length; i++)
+					values[i] = encode(columns.get(i), codecs[i], json);
+			}
+			catch (RuntimeException e) {
+				if (e instanceof JSONException)
+					throw e;
+				throw new JSONException("can not map the record to " + table + ": " + e);
+			}
+			return values;
+		}
+
+		@SuppressWarnings("unchecked")
+		private <T> ByteBuffer encode(Column<T> column, TypeCodec<?> codec, JSONObject json) {
+			return ((TypeCodec<T>) codec).encode(column.value(json), ProtocolVersion.DEFAULT);
+		}
+
+		public String partitionKey(JSONObject json) {
+			return TableMapping.this.partitionKey(json);
+		}
+
+		public String[] getColumns() {
+			String[] names = new String[codecs.length];
+			for (int i = 0; i < names.length; i++)
+				names[i] = columns.get(i).name;
+			return names;
+		}
+
+		public String[] getCqlTypes() {
+			String[] types = new String[codecs.length];
+			for (int i = 0; i < types.length; i++)
+				types[i] = codecs[i].getCqlType().asCql(false, true);
+			return types;
+		}
+
+		public String getTable() {
+			return table;
+		}
+	}
+
+
+	public Encoder encoder() {
+		return new Encoder();
+	}
+
+
+	// the partition key of the row, null when the mapping has none (or the record misses it)
+	private String partitionKey(JSONObject json) {
+		if (partitionKeyPath == null)
+			return null;
+		Object value = lookup(json, partitionKeyPath);
+		return value == null ? null : value.toString();
+	}
+
+
+	// the value at the path, null when missing (or JSON null)
+	private static Object lookup(JSONObject json, String[] path) {
+		JSONObject current = json;
+		for (int i = 0; i < path.length - 1; i++) {
+			current = current.optJSONObject(path[i]);
+			if (current == null)
+				return null;
+		}
+		Object value = current.opt(path[path.length - 1]);
+		return (value == null || JSONObject.NULL.equals(value)) ? null : value;
+	}
+
+
+	private static Set<String> flattenTextSet(Object value) {
+		Set<String> values = new HashSet<>();
+		if (!(value instanceof JSONArray))
+			return values;
+
+		JSONArray lists = (JSONArray) value;
+		for (int i = 0; i < lists.length(); i++) {
+			Object list = lists.opt(i);
+			if (list instanceof JSONArray) {
+				JSONArray items = (JSONArray) list;
+				for (int j = 0; j < items.length(); j++)
+					values.add(items.opt(j).toString());
+			}
+			else if (list != null)
+				values.add(list.toString());
+		}
+		return values;
+	}
+}
@@ -0,0 +1,91 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.datastax.oss.driver.api.core.CqlIdentifier;
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.metadata.Node;
+import com.datastax.oss.driver.api.core.metadata.TokenMap;
+import com.datastax.oss.driver.api.core.metadata.token.Token;
+
+
+/*
+ * Computes the routing token and the replicas of a row from its partition key (the statement's routing key).
+ * Used by the loaders to group the writes of every in-flight window by their owning node,
+ * and to measure how many writes were coordinated by a replica of their partition.
+ * When the cluster does not expose token metadata the router is disabled and everything stays in file order.
+ */
+public class TokenRouter {
+
+	private final TokenMap					tokenMap;
+	private final CqlIdentifier				keyspace;
+
+	// measurements
+	private final LongAdder					replicaHits		=	new LongAdder();
+	private final LongAdder					replicaMisses	=	new LongAdder();
+	private final Map<Node, LongAdder>		perCoordinator	=	new ConcurrentHashMap<>();
+
+
+	public TokenRouter(CqlSession session) {
+		Optional<TokenMap> tokenMap	=	session.getMetadata().getTokenMap();
+		this.tokenMap				=	tokenMap.orElse(null);
+		this.keyspace				=	session.getKeyspace().orElse(null);
+	}
+
+
+	public boolean isEnabled() {
+		return tokenMap != null && keyspace != null;
+	}
+
+
+	// returns null when the token can not be computed
+	public Token tokenOf(ByteBuffer routingKey) {
+		if (!isEnabled() || routingKey == null)
+			return null;
+		return tokenMap.newToken(routingKey);
+	}
+
+
+	// the first replica that owns the token, null when unknown
+	public Node primaryReplica(Token token) {
+		if (token == null)
+			return null;
+		Set<Node> replicas = tokenMap.getReplicas(keyspace, token);
+		return replicas.isEmpty() ? null : replicas.iterator().next();
+	}
+
+
+	// records which node coordinated a completed write
+	public void recordCoordinator(Token token, Node coordinator) {
+		if (coordinator == null)
+			return;
+
+		perCoordinator.computeIfAbsent(coordinator, n -> new LongAdder()).increment();
+
+		if (token == null)
+			return;
+		if (tokenMap.getReplicas(keyspace, token).contains(coordinator))
+			replicaHits.increment();
+		else
+			replicaMisses.increment();
+	}
+
+
+	public String report() {
+		long hits = replicaHits.sum();
+		long total = hits + replicaMisses.sum();
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("routing - replica coordinated writes: ").append(hits).append("/").append(total);
+		if (total > 0)
+			sb.append(String.format(" (%.1f%%)", 100.0 * hits / total));
+		for (Map.Entry<Node, LongAdder> entry : perCoordinator.entrySet())
+			sb.append("\n\t").append(entry.getKey().getEndPoint()).append(": ").append(entry.getValue().sum());
+		return sb.toString();
+	}
+}
@@ -0,0 +1,59 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.util.List;
+import java.util.concurrent.CompletionException;
+
+import com.datastax.oss.driver.api.core.AllNodesFailedException;
+import com.datastax.oss.driver.api.core.DriverTimeoutException;
+import com.datastax.oss.driver.api.core.RequestThrottlingException;
+import com.datastax.oss.driver.api.core.connection.BusyConnectionException;
+import com.datastax.oss.driver.api.core.servererrors.OverloadedException;
+import com.datastax.oss.driver.api.core.servererrors.ReadTimeoutException;
+import com.datastax.oss.driver.api.core.servererrors.WriteTimeoutException;
+
+
+/*
+ * Classification of the errors returned for a write
+ */
+public class WriteErrors {
+
+	private WriteErrors() {
+	}
+
+
+	// the async API may wrap the driver error
+	public static Throwable unwrap(Throwable error) {
+		while (error instanceof CompletionException && error.getCause() != null)
+			error = error.getCause();
+		return error;
+	}
+
+
+	// true when the cluster (or AstraDB's rate limiter) asks us to slow down
+	public static boolean isOverload(Throwable error) {
+		error = unwrap(error);
+
+		if (error instanceof OverloadedException			||
+			error instanceof WriteTimeoutException			||
+			error instanceof ReadTimeoutException			||
+			error instanceof DriverTimeoutException		||
+			error instanceof BusyConnectionException		||
+			error instanceof RequestThrottlingException)
+			return true;
+
+		// AstraDB reports rate limiting as a server error with a message
+		String message = error.getMessage();
+		if (message != null && message.toLowerCase().contains("rate limit"))
+			return true;
+
+		// the driver tried several nodes, each may have failed on its own
+		if (error instanceof AllNodesFailedException) {
+			for (List<Throwable> nodeErrors : ((AllNodesFailedException) error).getAllErrors().values())
+				for (Throwable nodeError : nodeErrors)
+					if (isOverload(nodeError))
+						return true;
+		}
+
+		return false;
+	}
+}
@@ -0,0 +1,73 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/*
+ * How the AsyncWriter sends its statements - all modes are bounded by the same AdaptiveLimiter.
+ *   ASYNC   - executeAsync, no thread per request (the default)
+ *   POOL    - a blocking execute on a fixed pool of platform threads (the limit is capped at the pool size)
+ *   VIRTUAL - a blocking execute on a virtual thread per request
+ * Virtual threads need Java 21, the project targets 17 - the executor is looked up by reflection,
+ * and where it does not exist VIRTUAL falls back to ASYNC.
+ */
+public enum WriteMode {
+
+	ASYNC,
+	POOL,
+	VIRTUAL;
+
+
+	// -Dhw2.writeMode=async|pool|virtual
+	public static WriteMode parse(String mode) {
+		return valueOf(mode.toUpperCase());
+	}
+
+
+	// the executor the writes run on, null - executeAsync
+	public ExecutorService newExecutor(int poolThreads) {
+		switch (this) {
+			case POOL:
+				return newPlatformPool(poolThreads, "writer");
+			case VIRTUAL:
+				ExecutorService executor = newVirtualPerTask();
+				if (executor == null)
+					System.out.println("virtual threads are not available on Java " + Runtime.version().feature() + ", writing with executeAsync");
+				return executor;
+			default:
+				return null;
+		}
+	}
+
+
+	// the cap of the writes in flight - a pool can only run its threads at once, more would wait in its queue
+	// unseen by the limiter, which would keep raising the limit while the latency grows
+	public int maxInFlight(int cap, int poolThreads) {
+		return this == POOL ? Math.min(cap, poolThreads) : cap;
+	}
+
+
+	public static ExecutorService newPlatformPool(int threads, String namePrefix) {
+		AtomicInteger count = new AtomicInteger();
+		return Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, namePrefix + "-" + count.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+
+	// Executors.newVirtualThreadPerTaskExecutor(), null before Java 21
+	public static ExecutorService newVirtualPerTask() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		}
+		catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}